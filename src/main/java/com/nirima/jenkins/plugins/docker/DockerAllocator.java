@@ -0,0 +1,304 @@
+package com.nirima.jenkins.plugins.docker;
+
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Shares the instance cap of a {@link DockerCloud} between its templates.
+ *
+ * Containers, and the memory of their in-memory workspaces, are counted with atomic counters that are taken before
+ * a container is created and given back when it terminates, so the caps are enforced without asking the daemon.
+ * Templates with a higher
+ * {@link DockerTemplate#priority} are served first, and capacity is held back for the
+ * {@link DockerTemplate#reservedInstances} of every template. What is left is split between the templates with
+ * queued demand by deficit round robin: every provisioning pass for a template adds its fair share of the free
+ * capacity to its deficit, and it may only start as many containers as its deficit covers. When the cloud is full,
+ * idle containers that have not run a job yet are preempted in favour of higher priority demand.
+ *
+ * Saving the global configuration replaces every {@link DockerCloud}, so the counters are kept per cloud name and
+ * the current cloud is passed in on every call.
+ */
+class DockerAllocator {
+    private static final Logger LOGGER = Logger.getLogger(DockerAllocator.class.getName());
+
+    private static final ConcurrentMap<String, DockerAllocator> ALLOCATORS = new ConcurrentHashMap<String, DockerAllocator>();
+
+    private final String cloudName;
+
+    private final AtomicInteger total = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> perImage = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicLong workspaceMemoryMb = new AtomicLong();
+    private volatile boolean seeded;
+
+    // guarded by this
+    private final Map<String, Integer> deficits = new HashMap<String, Integer>();
+
+    private DockerAllocator(String cloudName) {
+        this.cloudName = cloudName;
+    }
+
+    /**
+     * Gets the allocator of the cloud with the given name, which outlives reconfigurations of the cloud.
+     */
+    static DockerAllocator forCloud(String cloudName) {
+        DockerAllocator allocator = ALLOCATORS.get(cloudName);
+        if (allocator == null) {
+            ALLOCATORS.putIfAbsent(cloudName, new DockerAllocator(cloudName));
+            allocator = ALLOCATORS.get(cloudName);
+        }
+        return allocator;
+    }
+
+    /**
+     * Works out how many of the wanted containers the template may start now.
+     */
+    synchronized int allocate(DockerCloud cloud, DockerTemplate t, int wanted) {
+        if (cloud.instanceCap == 0 || wanted <= 0) {
+            return wanted;
+        }
+        seed(cloud);
+
+        Map<DockerTemplate, Integer> demand = countDemand(cloud);
+        int free = cloud.instanceCap - total.get();
+        int guaranteed = Math.max(0, t.reservedInstances - running(t));
+        int allowed = allowed(cloud, t, demand, free, guaranteed);
+
+        int active = 1;
+        for (DockerTemplate o : cloud.templates) {
+            if (o != t && get(demand, o) > 0 && o.priority == t.priority) {
+                active++;
+            }
+        }
+
+        if (allowed < wanted && free <= 0) {
+            preempt(cloud, t, wanted - allowed);
+        }
+
+        int granted = Math.min(wanted, allowed);
+        if (active > 1 && granted > guaranteed) {
+            // share what is left with the other templates of the same priority that are waiting
+            Integer deficit = deficits.get(t.image);
+            deficit = DockerCapacity.addShare(deficit == null ? 0 : deficit, allowed, active, cloud.instanceCap);
+            granted = DockerCapacity.grant(wanted, allowed, guaranteed, deficit);
+            deficits.put(t.image, wanted > granted ? deficit - granted : 0);
+        } else {
+            deficits.remove(t.image);
+        }
+
+        LOGGER.log(Level.FINE, "Allocated " + granted + " of " + wanted + " containers to " + t.image);
+        return granted;
+    }
+
+    /**
+     * Capacity left to the template once the reservations of the other templates, and the queued demand of those
+     * with a higher priority, are held back.
+     */
+    private int allowed(DockerCloud cloud, DockerTemplate t, Map<DockerTemplate, Integer> demand, int free, int guaranteed) {
+        int held = 0;
+        for (DockerTemplate o : cloud.templates) {
+            if (o == t) {
+                continue;
+            }
+            int reservedLeft = Math.max(0, o.reservedInstances - running(o));
+            held += DockerCapacity.heldBack(reservedLeft, o.priority > t.priority, get(demand, o));
+        }
+        return DockerCapacity.allowed(free, held, guaranteed);
+    }
+
+    /**
+     * Whether a container of the template could be started right now, going by the same caps, workspace memory,
+     * priorities and reservations as {@link #allocate} and {@link #tryAcquire}, without taking anything.
+     */
+    boolean canStart(DockerCloud cloud, DockerTemplate t) {
+        seed(cloud);
+        if (cloud.workspaceMemoryMb != 0 && workspaceMemoryMb.get() + t.workspaceSizeMb > cloud.workspaceMemoryMb) {
+            return false;
+        }
+        if (t.instanceCap != 0 && running(t) >= t.instanceCap) {
+            return false;
+        }
+        if (cloud.instanceCap == 0) {
+            return true;
+        }
+        synchronized (this) {
+            int free = cloud.instanceCap - total.get();
+            int guaranteed = Math.max(0, t.reservedInstances - running(t));
+            return allowed(cloud, t, countDemand(cloud), free, guaranteed) > 0;
+        }
+    }
+
+    /**
+     * Takes one container of the cloud's and the template's capacity, and the memory of its workspace.
+     *
+     * @return false if either cap is reached or there is not enough memory left for the workspace.
+     */
+    boolean tryAcquire(DockerCloud cloud, DockerTemplate t) {
+        seed(cloud);
+        while (true) {
+            long n = workspaceMemoryMb.get();
+            if (cloud.workspaceMemoryMb != 0 && n + t.workspaceSizeMb > cloud.workspaceMemoryMb) {
+                return false;
+            }
+            if (workspaceMemoryMb.compareAndSet(n, n + t.workspaceSizeMb)) {
+                break;
+            }
+        }
+        while (true) {
+            int n = total.get();
+            if (cloud.instanceCap != 0 && n >= cloud.instanceCap) {
+                workspaceMemoryMb.addAndGet(-t.workspaceSizeMb);
+                return false;
+            }
+            if (total.compareAndSet(n, n + 1)) {
+                break;
+            }
+        }
+        AtomicInteger mine = counter(t.image);
+        while (true) {
+            int n = mine.get();
+            if (t.instanceCap != 0 && n >= t.instanceCap) {
+                total.decrementAndGet();
+                workspaceMemoryMb.addAndGet(-t.workspaceSizeMb);
+                return false;
+            }
+            if (mine.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back the capacity of a container of the given template.
+     */
+    void release(DockerTemplate t) {
+        decrement(total);
+        decrement(counter(t.image));
+        workspaceMemoryMb.addAndGet(-t.workspaceSizeMb);
+    }
+
+    int running(DockerTemplate t) {
+        return counter(t.image).get();
+    }
+
+    /**
+     * Counts the containers of the cloud's slaves that are already registered, the first time the cloud is used.
+     */
+    private void seed(DockerCloud cloud) {
+        if (seeded) {
+            return;
+        }
+        synchronized (this) {
+            if (seeded) {
+                return;
+            }
+            for (Node node : Jenkins.getInstance().getNodes()) {
+                if (node instanceof DockerSlave) {
+                    DockerSlave slave = (DockerSlave) node;
+                    DockerCloud owner = slave.getCloud();
+                    if (owner != null && cloudName.equals(owner.name)) {
+                        total.incrementAndGet();
+                        counter(slave.dockerTemplate.image).incrementAndGet();
+                        workspaceMemoryMb.addAndGet(slave.dockerTemplate.workspaceSizeMb);
+                    }
+                }
+            }
+            seeded = true;
+        }
+    }
+
+    /**
+     * Terminates idle, unused containers of lower priority templates that hold more than their reservation.
+     * The capacity they free is picked up on the next provisioning pass.
+     */
+    private void preempt(DockerCloud cloud, DockerTemplate t, int count) {
+        Map<DockerTemplate, Integer> preemptible = new HashMap<DockerTemplate, Integer>();
+        for (DockerTemplate o : cloud.templates) {
+            preemptible.put(o, running(o) - o.reservedInstances);
+        }
+
+        for (Computer c : Jenkins.getInstance().getComputers()) {
+            if (count <= 0) {
+                return;
+            }
+            if (!(c instanceof DockerComputer)) {
+                continue;
+            }
+            DockerComputer dc = (DockerComputer) c;
+            DockerSlave slave = dc.getNode();
+            if (slave == null || dc.haveWeRunAnyJobs() || slave.getCloud() == null
+                    || !cloudName.equals(slave.getCloud().name)) {
+                continue;
+            }
+            DockerTemplate victim = cloud.getTemplate(slave.dockerTemplate.image);
+            if (victim == null) {
+                continue;
+            }
+            if (!dc.isAcceptingTasks()) {
+                // already being preempted
+                count--;
+                preemptible.put(victim, get(preemptible, victim) - 1);
+                continue;
+            }
+            if (!dc.isIdle() || victim.priority >= t.priority || get(preemptible, victim) <= 0) {
+                continue;
+            }
+
+            LOGGER.log(Level.INFO, "Preempting idle " + slave.getNodeName() + " in favour of " + t.image);
+            dc.setAcceptingTasks(false);
+            slave.retentionTerminate();
+            preemptible.put(victim, get(preemptible, victim) - 1);
+            count--;
+        }
+    }
+
+    private Map<DockerTemplate, Integer> countDemand(DockerCloud cloud) {
+        Map<DockerTemplate, Integer> demand = new HashMap<DockerTemplate, Integer>();
+        for (Queue.BuildableItem item : Jenkins.getInstance().getQueue().getBuildableItems()) {
+            Label label = item.getAssignedLabel();
+            if (label == null) {
+                continue;
+            }
+            DockerTemplate t = cloud.getTemplate(label);
+            if (t != null) {
+                demand.put(t, get(demand, t) + 1);
+            }
+        }
+        return demand;
+    }
+
+    private AtomicInteger counter(String image) {
+        AtomicInteger counter = perImage.get(image);
+        if (counter == null) {
+            perImage.putIfAbsent(image, new AtomicInteger());
+            counter = perImage.get(image);
+        }
+        return counter;
+    }
+
+    private static void decrement(AtomicInteger counter) {
+        while (true) {
+            int n = counter.get();
+            if (n == 0 || counter.compareAndSet(n, n - 1)) {
+                return;
+            }
+        }
+    }
+
+    private static int get(Map<DockerTemplate, Integer> counts, DockerTemplate t) {
+        Integer count = counts.get(t);
+        return count == null ? 0 : count;
+    }
+}
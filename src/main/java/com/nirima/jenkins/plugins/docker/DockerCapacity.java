@@ -0,0 +1,70 @@
+package com.nirima.jenkins.plugins.docker;
+
+/**
+ * The decisions {@link DockerCloud}, {@link DockerAllocator} and {@link DockerRetentionStrategy} take about starting
+ * and stopping containers, kept free of Jenkins types so that
+ * {@link com.nirima.jenkins.plugins.docker.sim.CapacitySimulator} replays the very same rules.
+ */
+public final class DockerCapacity {
+
+    private DockerCapacity() {
+    }
+
+    /**
+     * Number of containers to start for the given excess workload, topping up to the minimum of idle containers
+     * without going over the template's cap.
+     */
+    public static int containersToCreate(int excessWorkload, int minIdleContainers, int instanceCap) {
+        return Math.min(excessWorkload + minIdleContainers, instanceCap);
+    }
+
+    /**
+     * Whether another container should be started after one terminated, because the slaves that are left fall short
+     * of the minimum of idle containers.
+     *
+     * @param excessWorkload queued builds less idle executors and slaves being provisioned
+     */
+    public static boolean needsReplenishing(int excessWorkload, int minIdleContainers) {
+        return minIdleContainers >= 0 && excessWorkload > -minIdleContainers;
+    }
+
+    /**
+     * Containers of the cloud-wide cap that a template holds back from another: what is left of its reservation, and
+     * its queued demand if it has the higher priority.
+     */
+    public static int heldBack(int reservedLeft, boolean higherPriority, int waiting) {
+        return Math.max(reservedLeft, higherPriority ? waiting : 0);
+    }
+
+    /**
+     * Containers a template may start out of the free capacity of the cloud, once what other templates hold back is
+     * taken off. The rest of its own reservation is always allowed as far as there is free capacity.
+     */
+    public static int allowed(int free, int heldBack, int guaranteed) {
+        return Math.max(0, Math.max(free - heldBack, Math.min(free, guaranteed)));
+    }
+
+    /**
+     * Adds a template's fair share of what it is allowed to its deficit, when it competes with other templates of
+     * the same priority for the capacity.
+     *
+     * @param active number of templates of that priority with queued demand, including this one
+     */
+    public static int addShare(int deficit, int allowed, int active, int cloudCap) {
+        return Math.min(cloudCap, deficit + Math.max(1, allowed / active));
+    }
+
+    /**
+     * Containers granted to a competing template: no more than its deficit covers, but at least its reservation.
+     */
+    public static int grant(int wanted, int allowed, int guaranteed, int deficit) {
+        return Math.max(guaranteed, Math.min(Math.min(wanted, allowed), deficit));
+    }
+
+    /**
+     * Whether a slave is done with. Every container runs a single build, so it goes as soon as it is idle again.
+     */
+    public static boolean shouldTerminate(boolean idle, boolean haveRunAnyJobs, long idleMilliseconds) {
+        return idle && haveRunAnyJobs && idleMilliseconds > 0;
+    }
+}
@@ -0,0 +1,150 @@
+package com.nirima.jenkins.plugins.docker;
+
+import hudson.model.Computer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the health of one Docker endpoint so that provisioning can fail fast while the daemon is down or slow.
+ *
+ * The breaker trips once too many of the recent calls failed or took longer than the slow call threshold.
+ * While open, {@link DockerCloud} refuses to provision and Jenkins moves on to other clouds. After a cool-down
+ * a single {@code infoCmd()} probe is sent; if it succeeds the breaker closes again.
+ */
+public class DockerCircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger(DockerCircuitBreaker.class.getName());
+
+    private static final ConcurrentMap<String, DockerCircuitBreaker> BREAKERS = new ConcurrentHashMap<String, DockerCircuitBreaker>();
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String serverUrl;
+
+    // outcome of the most recent calls, true for a failed or slow one
+    private final boolean[] window = new boolean[WINDOW_SIZE];
+    private int calls;
+    private int next;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+
+    private DockerCircuitBreaker(String serverUrl) {
+        this.serverUrl = serverUrl;
+    }
+
+    /**
+     * Gets the breaker shared by every cloud talking to the given endpoint.
+     */
+    public static DockerCircuitBreaker forEndpoint(String serverUrl) {
+        DockerCircuitBreaker breaker = BREAKERS.get(serverUrl);
+        if (breaker == null) {
+            BREAKERS.putIfAbsent(serverUrl, new DockerCircuitBreaker(serverUrl));
+            breaker = BREAKERS.get(serverUrl);
+        }
+        return breaker;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Health of the endpoint from 0 (every recent call failed or was slow) to 100.
+     */
+    public synchronized int getHealthScore() {
+        if (state != State.CLOSED) {
+            return 0;
+        }
+        if (calls == 0) {
+            return 100;
+        }
+        return 100 - (100 * failures / calls);
+    }
+
+    /**
+     * Whether calls may be made to the endpoint. Once the cool-down of an open breaker has elapsed this starts the
+     * half-open probe against the given cloud in the background and still answers false.
+     */
+    public boolean isAvailable(final DockerCloud cloud) {
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.HALF_OPEN || System.currentTimeMillis() - openedAt < OPEN_MILLIS) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+        }
+
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            public void run() {
+                try {
+                    cloud.connect().infoCmd().exec();
+                    close();
+                }
+                catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Probe of Docker endpoint " + serverUrl + " failed", e);
+                    open();
+                }
+            }
+        });
+        return false;
+    }
+
+    public void recordSuccess(long durationMillis) {
+        record(durationMillis > SLOW_CALL_MILLIS);
+    }
+
+    public void recordFailure() {
+        record(true);
+    }
+
+    private synchronized void record(boolean failed) {
+        if (state != State.CLOSED) {
+            return;
+        }
+        if (calls == WINDOW_SIZE) {
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[next] = failed;
+        if (failed) {
+            failures++;
+        }
+        next = (next + 1) % WINDOW_SIZE;
+
+        if (calls >= MIN_CALLS && failures * 100 >= calls * FAILURE_PERCENT) {
+            open();
+        }
+    }
+
+    private synchronized void open() {
+        if (state != State.OPEN) {
+            LOGGER.log(Level.WARNING, "Docker endpoint " + serverUrl + " is failing, suspending provisioning");
+        }
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private synchronized void close() {
+        LOGGER.log(Level.INFO, "Docker endpoint " + serverUrl + " recovered, resuming provisioning");
+        state = State.CLOSED;
+        calls = 0;
+        next = 0;
+        failures = 0;
+    }
+
+    private static final int WINDOW_SIZE = 20;
+
+    public static int MIN_CALLS = Integer.getInteger(DockerCircuitBreaker.class.getName() + ".minCalls", 5);
+    public static int FAILURE_PERCENT = Integer.getInteger(DockerCircuitBreaker.class.getName() + ".failurePercent", 50);
+    public static long SLOW_CALL_MILLIS = Long.getLong(DockerCircuitBreaker.class.getName() + ".slowCallMillis", 30000);
+    public static long OPEN_MILLIS = Long.getLong(DockerCircuitBreaker.class.getName() + ".openMillis", 60000);
+}
@@ -1,13 +1,13 @@
 package com.nirima.jenkins.plugins.docker;
 
-import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
-import com.google.common.collect.Collections2;
 import com.github.dockerjava.client.DockerClient;
 import com.github.dockerjava.client.DockerException;
 import com.github.dockerjava.client.model.Container;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.*;
 import hudson.model.MultiStageTimeSeries.TimeScale;
 import hudson.slaves.Cloud;
@@ -15,16 +15,16 @@ import hudson.slaves.NodeProvisioner;
 import hudson.slaves.NodeProvisioner.PlannedNode;
 import hudson.util.FormValidation;
 import hudson.util.StreamTaskListener;
-import jenkins.model.Jenkins;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
-import javax.annotation.Nullable;
 import javax.servlet.ServletException;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -32,6 +32,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,15 +49,62 @@ public class DockerCloud extends Cloud {
 
     public static final String CLOUD_ID_PREFIX = "docker-";
 
+    /**
+     * Official image with git and a shell, and no entry point in the way of the refresh script.
+     */
+    public static final String DEFAULT_GIT_MIRROR_IMAGE = "buildpack-deps:scm";
+
     public final List<? extends DockerTemplate> templates;
     public final String serverUrl;
 
+    public final int instanceCap; // maximum number of containers of all templates, 0 for no limit
+    public final long workspaceMemoryMb; // host memory available to in-memory workspaces, 0 for no limit
+
+    public final int committedImagesPerJob; // maximum number of committed images kept per job, 0 for no limit
+    public final long committedImagesSizeMb; // total size of committed images kept on the host, 0 for no limit
+
+    /**
+     * Git repositories mirrored on the host and mounted read-only into every container, one URL per line.
+     */
+    public final String gitMirrors;
+    public final String gitMirrorPath; // host directory holding the mirrors, mounted at the same path in containers
+    public final String gitMirrorImage; // image with sh and git used to refresh the mirrors, pulled before each refresh
+
     private transient DockerClient connection;
 
     @DataBoundConstructor
-    public DockerCloud(String name, List<? extends DockerTemplate> templates, String serverUrl, String instanceCapStr) {
+    public DockerCloud(String name, List<? extends DockerTemplate> templates, String serverUrl, String instanceCapStr,
+                       String committedImagesPerJobStr, String committedImagesSizeMbStr, String workspaceMemoryMbStr,
+                       String gitMirrors, String gitMirrorPath, String gitMirrorImage) {
         super(name);
         this.serverUrl = serverUrl;
+        this.gitMirrors = Util.fixEmptyAndTrim(gitMirrors);
+        this.gitMirrorPath = Strings.isNullOrEmpty(gitMirrorPath) ? "/var/cache/git-mirrors" : gitMirrorPath;
+        this.gitMirrorImage = Strings.isNullOrEmpty(gitMirrorImage) ? DEFAULT_GIT_MIRROR_IMAGE : gitMirrorImage;
+
+        if (Strings.isNullOrEmpty(instanceCapStr)) {
+            this.instanceCap = 0;
+        } else {
+            this.instanceCap = Integer.parseInt(instanceCapStr);
+        }
+
+        if (Strings.isNullOrEmpty(workspaceMemoryMbStr)) {
+            this.workspaceMemoryMb = 0;
+        } else {
+            this.workspaceMemoryMb = Long.parseLong(workspaceMemoryMbStr);
+        }
+
+        if (Strings.isNullOrEmpty(committedImagesPerJobStr)) {
+            this.committedImagesPerJob = 0;
+        } else {
+            this.committedImagesPerJob = Integer.parseInt(committedImagesPerJobStr);
+        }
+
+        if (Strings.isNullOrEmpty(committedImagesSizeMbStr)) {
+            this.committedImagesSizeMb = 0;
+        } else {
+            this.committedImagesSizeMb = Long.parseLong(committedImagesSizeMbStr);
+        }
 
         if( templates != null )
             this.templates = templates;
@@ -68,13 +120,79 @@ public class DockerCloud extends Cloud {
         return this;
     }
 
+    public String getInstanceCapStr() {
+        if (instanceCap == 0) {
+            return "";
+        } else {
+            return String.valueOf(instanceCap);
+        }
+    }
+
+    public List<String> getGitMirrorUrls() {
+        List<String> urls = new ArrayList<String>();
+        if (gitMirrors != null) {
+            for (String url : gitMirrors.split("\\s+")) {
+                if (url.length() > 0) {
+                    urls.add(url);
+                }
+            }
+        }
+        return urls;
+    }
+
+    public String getWorkspaceMemoryMbStr() {
+        if (workspaceMemoryMb == 0) {
+            return "";
+        } else {
+            return String.valueOf(workspaceMemoryMb);
+        }
+    }
+
+    public String getCommittedImagesPerJobStr() {
+        if (committedImagesPerJob == 0) {
+            return "";
+        } else {
+            return String.valueOf(committedImagesPerJob);
+        }
+    }
+
+    public String getCommittedImagesSizeMbStr() {
+        if (committedImagesSizeMb == 0) {
+            return "";
+        } else {
+            return String.valueOf(committedImagesSizeMb);
+        }
+    }
+
+    /**
+     * Whether the daemon is reached through a unix domain socket on the Jenkins master, such as
+     * {@code unix:///var/run/docker.sock}.
+     */
+    public boolean isUnixSocket() {
+        return isUnixSocket(serverUrl);
+    }
+
+    static boolean isUnixSocket(String serverUrl) {
+        return serverUrl != null && serverUrl.startsWith(UNIX_SCHEME);
+    }
+
+    /**
+     * Creates a client for the given endpoint.
+     */
+    static DockerClient createClient(String serverUrl) throws DockerException {
+        if (isUnixSocket(serverUrl)) {
+            return DockerUnixSocket.createClient(new File(serverUrl.substring(UNIX_SCHEME.length())));
+        }
+        return new DockerClient(serverUrl);
+    }
+
     /**
      * Connects to Docker.
      */
     public synchronized DockerClient connect() {
         if (connection == null) {
             try {
-				connection = new DockerClient(serverUrl);
+				connection = createClient(serverUrl);
 			}
             catch (DockerException e) {
             	LOGGER.log(Level.SEVERE, "Docker client creation failed " + e, e);
@@ -86,14 +204,31 @@ public class DockerCloud extends Cloud {
 
     @Override
     public Collection<NodeProvisioner.PlannedNode> provision(final Label label, final int excessWorkload) {
+        if (!getCircuitBreaker().isAvailable(this)) {
+            LOGGER.log(Level.FINE, "Docker endpoint " + serverUrl + " is unavailable, not provisioning");
+            return Collections.emptyList();
+        }
         try {
         	LOGGER.log(Level.INFO, "Excess workload: " + excessWorkload);
 
             List<NodeProvisioner.PlannedNode> r = new ArrayList<NodeProvisioner.PlannedNode>();
 
             final DockerTemplate t = getTemplate(label);
-            int containersToCreate = Math.min(excessWorkload + t.minIdleContainers, t.instanceCap);
+
+            // decided here rather than in canProvision(), whose answer is cached per label while the queue changes
+            DockerCloud preferred = DockerLocality.preferredElsewhere(this, label);
+            if (preferred != null) {
+                LOGGER.log(Level.FINE, "Leaving " + label + " to " + preferred.name + " where it ran last");
+                return Collections.emptyList();
+            }
+
+            int containersToCreate = DockerCapacity.containersToCreate(excessWorkload, t.minIdleContainers, t.instanceCap);
+            containersToCreate = getAllocator().allocate(this, t, containersToCreate);
         	LOGGER.log(Level.INFO, "Creating " + containersToCreate + " containers...");
+            if (containersToCreate > 0) {
+                DockerLocality.provisioned(this, label);
+                DockerLocality.startedOn(t, this);
+            }
 
             while (containersToCreate > 0) {
             	boolean provisioned = provisionContainer(t, r);
@@ -118,7 +253,7 @@ public class DockerCloud extends Cloud {
      */
     private boolean provisionContainer(final DockerTemplate t, List<NodeProvisioner.PlannedNode> r)
     throws Exception {
-        if (!addProvisionedSlave(t.image, t.instanceCap)) {
+        if (!getAllocator().tryAcquire(this, t)) {
             return false;
         }
 
@@ -126,9 +261,32 @@ public class DockerCloud extends Cloud {
                 Computer.threadPoolForRemoting.submit(new Callable<Node>() {
                     public Node call() throws Exception {
                         // TODO: record the output somewhere
+                        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(PROVISION_TIMEOUT);
                         try {
-                            DockerSlave s = t.provision(new StreamTaskListener(System.out, Charset.defaultCharset()));
-                            Jenkins.getInstance().addNode(s);
+                            DockerSlave s;
+                            try {
+                                s = createSlave(t, Math.min(TimeUnit.SECONDS.toMillis(CONTAINER_TIMEOUT),
+                                        deadline - System.currentTimeMillis()));
+                            }
+                            catch (Exception ex) {
+                                // no slave to terminate, so give the capacity back here
+                                getAllocator().release(t);
+                                throw ex;
+                            }
+                            try {
+                                DockerNodeBatcher.add(s).get(deadline - System.currentTimeMillis(),
+                                        TimeUnit.MILLISECONDS);
+                            }
+                            catch (Exception ex) {
+                                // a late batch may still register it, so have it taken out again as well
+                                LOGGER.log(Level.WARNING, "Failed to register " + s.getNodeName()
+                                        + ", removing its container");
+                                DockerNodeBatcher.remove(s);
+                                s.discard();
+                                discardContainer(t, s.containerId);
+                                getAllocator().release(t);
+                                throw ex;
+                            }
                             // EC2 instances may have a long init script. If we declare
                             // the provisioning complete by returning without the connect
                             // operation, NodeProvisioner may decide that it still wants
@@ -138,7 +296,17 @@ public class DockerCloud extends Cloud {
                             //
                             // deferring the completion of provisioning until the launch
                             // goes successful prevents this problem.
-                            s.toComputer().connect(false).get();
+                            Future<?> launch = s.toComputer().connect(false);
+                            try {
+                                launch.get(Math.min(TimeUnit.SECONDS.toMillis(LAUNCH_TIMEOUT),
+                                        deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                            }
+                            catch (TimeoutException ex) {
+                                LOGGER.log(Level.WARNING, "Timed out launching " + s.getNodeName() + ", terminating it");
+                                launch.cancel(true);
+                                s.retentionTerminate();
+                                throw ex;
+                            }
                             return s;
                         }
                         catch(Exception ex) {
@@ -155,9 +323,107 @@ public class DockerCloud extends Cloud {
         return true;
     }
 
+    /**
+     * Creates and starts the container for a new slave, giving up after the given time.
+     *
+     * The Docker client cannot be interrupted, so the container is created on another thread. That thread is left
+     * to finish rather than interrupted half way; if it only finishes after we gave up, the container it created is
+     * removed straight away, and if it fails, {@link DockerTemplate#provision} removes the container itself.
+     * The circuit breaker only hears of whichever of the two settles the attempt, so a late creation is not also
+     * counted as a success.
+     */
+    private DockerSlave createSlave(final DockerTemplate t, long timeoutMillis) throws Exception {
+        // set by whichever comes first: the creation finishing, or us giving up on it
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        final long start = System.currentTimeMillis();
+        Future<DockerSlave> creation = Computer.threadPoolForRemoting.submit(new Callable<DockerSlave>() {
+            public DockerSlave call() throws Exception {
+                DockerSlave s;
+                try {
+                    s = t.provision(new StreamTaskListener(System.out, Charset.defaultCharset()));
+                }
+                catch (Exception ex) {
+                    // a timeout that came first has already been counted
+                    if (settled.compareAndSet(false, true)) {
+                        getCircuitBreaker().recordFailure();
+                    }
+                    throw ex;
+                }
+                if (!settled.compareAndSet(false, true)) {
+                    LOGGER.log(Level.INFO, "Removing container " + s.containerId + " that was created too late");
+                    s.discard();
+                    discardContainer(t, s.containerId);
+                    return s;
+                }
+                getCircuitBreaker().recordSuccess(System.currentTimeMillis() - start);
+                return s;
+            }
+        });
+
+        try {
+            return creation.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException ex) {
+            if (!settled.compareAndSet(false, true)) {
+                // finished just as we timed out, and nobody is going to remove it for us; already counted
+                return getCreated(creation);
+            }
+            LOGGER.log(Level.WARNING, "Timed out creating a container for " + t.image);
+            getCircuitBreaker().recordFailure();
+            throw ex;
+        }
+        catch (ExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    private static DockerSlave getCreated(Future<DockerSlave> creation) throws Exception {
+        try {
+            return creation.get();
+        }
+        catch (ExecutionException ex) {
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    /**
+     * Stops and removes a container that never became a registered slave.
+     */
+    private void discardContainer(DockerTemplate t, String containerId) {
+        DockerClient client = connect();
+        try {
+            client.stopContainerCmd(containerId).exec();
+        }
+        catch (DockerException e) {
+            LOGGER.log(Level.FINE, "Failure to stop container " + containerId, e);
+        }
+        try {
+            client.removeContainerCmd(containerId).exec();
+        }
+        catch (DockerException e) {
+            LOGGER.log(Level.SEVERE, "Failure to remove container " + containerId, e);
+        }
+        t.removeWorkspaceDirectories(client, containerId);
+    }
+
     @Override
     public boolean canProvision(Label label) {
-        return getTemplate(label)!=null;
+        return getTemplate(label) != null && getCircuitBreaker().isAvailable(this);
+    }
+
+    /**
+     * Whether a container of the template could be started right now.
+     */
+    boolean canStartContainer(DockerTemplate t) {
+        return getAllocator().canStart(this, t);
+    }
+
+    DockerAllocator getAllocator() {
+        return DockerAllocator.forCloud(name);
+    }
+
+    public DockerCircuitBreaker getCircuitBreaker() {
+        return DockerCircuitBreaker.forEndpoint(serverUrl);
     }
 
     public DockerTemplate getTemplate(String template) {
@@ -182,22 +448,11 @@ public class DockerCloud extends Cloud {
     }
 
     /**
-     * Check not too many already running.
-     *
+     * Lists the containers running on the host. This is polled every second, so it is left out of the circuit
+     * breaker's window, which would otherwise fill up with polls and hide provisioning failures.
      */
-    private boolean addProvisionedSlave(final String image, int instanceCap) throws Exception {
-        if( instanceCap == 0 )
-            return true;
-
-        List<Container> containers = connect().listContainersCmd().withShowAll(false).exec();
-
-        Collection<Container> matching = Collections2.filter(containers, new Predicate<Container>() {
-            public boolean apply(@Nullable Container container) {
-                return image.equalsIgnoreCase(container.getImage());
-            }
-        });
-
-        return matching.size() < instanceCap;
+    List<Container> listRunningContainers() throws DockerException {
+        return connect().listContainersCmd().withShowAll(false).exec();
     }
 
     @Extension
@@ -208,17 +463,38 @@ public class DockerCloud extends Cloud {
         }
 
         public FormValidation doTestConnection(
-                @QueryParameter URL serverUrl
-                ) throws IOException, ServletException, DockerException {
-
-            DockerClient dc = new DockerClient(serverUrl.toString());
-            dc.infoCmd().exec();
+                @QueryParameter String serverUrl
+                ) throws IOException, ServletException {
+            serverUrl = Util.fixEmptyAndTrim(serverUrl);
+            if (serverUrl == null) {
+                return FormValidation.error("Docker URL is required");
+            }
+            if (!isUnixSocket(serverUrl)) {
+                try {
+                    new URL(serverUrl);
+                }
+                catch (MalformedURLException e) {
+                    return FormValidation.error("Not a valid URL: " + serverUrl);
+                }
+            }
 
+            DockerClient dc = createClient(serverUrl);
+            try {
+                dc.infoCmd().exec();
+            }
+            catch (RuntimeException e) {
+                // connection failures come as Jersey exceptions rather than DockerException
+                return FormValidation.error(e, "Failed to connect to " + serverUrl);
+            }
+            finally {
+                dc.close();
+            }
             return FormValidation.ok();
         }
     }
 
 	void containerTerminated(DockerTemplate template, DockerSlave dockerSlave, TaskListener listener) {
+		getAllocator().release(template);
 		if (template.getMinIdleContainers() >= 0) {
 			// if we have a number of min idle containers, create them
 			Label label = Label.get(dockerSlave.getLabelString());
@@ -236,7 +512,7 @@ public class DockerCloud extends Cloud {
 					for (PlannedNode plannedNode : plannedNodes) {
 						excessWorkload -= plannedNode.numExecutors;
 					}
-					if (excessWorkload > -template.getMinIdleContainers()) {
+					if (DockerCapacity.needsReplenishing(excessWorkload, template.getMinIdleContainers())) {
 		                plannedNodes.addAll(provision(label, excessWorkload));
 					}
 				}
@@ -248,4 +524,14 @@ public class DockerCloud extends Cloud {
 		}
 		
 	}
-}
\ No newline at end of file
+
+    private static final String UNIX_SCHEME = "unix://";
+
+    /**
+     * Seconds allowed for creating and starting a container, for launching the agent in it, and for the whole
+     * provisioning of a slave. When exceeded the attempt is abandoned and its container removed.
+     */
+    public static long CONTAINER_TIMEOUT = Long.getLong(DockerCloud.class.getName() + ".containerTimeout", 120);
+    public static long LAUNCH_TIMEOUT = Long.getLong(DockerCloud.class.getName() + ".launchTimeout", 300);
+    public static long PROVISION_TIMEOUT = Long.getLong(DockerCloud.class.getName() + ".provisionTimeout", 360);
+}
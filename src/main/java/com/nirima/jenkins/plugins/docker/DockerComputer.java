@@ -2,10 +2,13 @@ package com.nirima.jenkins.plugins.docker;
 
 import com.google.common.base.Objects;
 import com.nirima.jenkins.plugins.docker.action.DockerBuildAction;
+import com.nirima.jenkins.plugins.docker.action.DockerResourceUsageAction;
 
 import hudson.model.*;
+import hudson.model.queue.WorkUnit;
 import hudson.slaves.AbstractCloudComputer;
 
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -19,6 +22,9 @@ public class DockerComputer extends AbstractCloudComputer<DockerSlave> {
 
     private AtomicBoolean haveWeRunAnyJobs = new AtomicBoolean(false);
 
+    private transient DockerResourceUsageAction usage;
+    private transient DockerResourceSampler.Sample lastSample;
+
 
     public DockerComputer(DockerSlave dockerSlave) {
         super(dockerSlave);
@@ -32,10 +38,62 @@ public class DockerComputer extends AbstractCloudComputer<DockerSlave> {
         return haveWeRunAnyJobs.get();
     }
 
+    /**
+     * Adds a sample taken by {@link DockerResourceSampler} to the usage of the current build.
+     */
+    synchronized void recordSample(DockerResourceSampler.Sample sample) {
+        if (usage == null) {
+            usage = new DockerResourceUsageAction(DockerResourceSampler.INTERVAL);
+        }
+        if (lastSample != null && sample.time > lastSample.time) {
+            float seconds = (sample.time - lastSample.time) / 1000f;
+            usage.add(
+                    Math.max(0, sample.cpuTicks - lastSample.cpuTicks) / seconds, // 100 ticks per second
+                    sample.memoryBytes / (1024f * 1024f),
+                    Math.max(0, sample.blockBytes - lastSample.blockBytes) / 1024f / seconds,
+                    Math.max(0, sample.netBytes - lastSample.netBytes) / 1024f / seconds);
+        }
+        lastSample = sample;
+
+        int limitMb = getNode().dockerTemplate.workspaceSizeMb;
+        if (limitMb > 0 && sample.workspaceBytes >= 0) {
+            float workspaceMb = sample.workspaceBytes / (1024f * 1024f);
+            if (usage.recordWorkspace(workspaceMb, limitMb) && workspaceMb >= limitMb * 0.9f) {
+                LOGGER.log(Level.WARNING, "Workspace of " + getName() + " uses " + (int) workspaceMb + " of its "
+                        + limitMb + " MB in memory");
+            }
+        }
+    }
+
+    private synchronized void recordUsage(Run build) {
+        if (usage != null && usage.getSize() > 0) {
+            build.addAction(usage);
+            try {
+                build.save();
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save resource usage of " + build, e);
+            }
+            DockerTemplate template = getCloud().getTemplate(getNode().dockerTemplate.image);
+            if (template != null) {
+                template.getUsageSummary().record(usage);
+            }
+        }
+        usage = null;
+        lastSample = null;
+    }
+
     @Override
     public void taskAccepted(Executor executor, Queue.Task task) {
         super.taskAccepted(executor, task);
-        LOGGER.log(Level.FINE, " Computer " + this + " taskAccepted");
+        DockerSlave node = getNode();
+        if (node != null && node.getTimeline() != null) {
+            WorkUnit workUnit = executor.getCurrentWorkUnit();
+            node.getTimeline().buildStarted(workUnit == null ? 0 : workUnit.context.item.getInQueueSince());
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, " Computer " + this + " taskAccepted");
+        }
     }
 
     @Override
@@ -44,10 +102,17 @@ public class DockerComputer extends AbstractCloudComputer<DockerSlave> {
     		LOGGER.log(Level.FINE, " Computer " + this + " taskCompleted");
 	        super.taskCompleted(executor, task, durationMS);
 
+	        DockerCloud cloud = getCloud();
+	        if (cloud != null) { // the cloud may have been removed while the task ran
+	            DockerLocality.ranOn(task, cloud);
+	        }
+
 	        Queue.Executable executable = executor.getCurrentExecutable();
 	        if( executable instanceof Run) {
 	            Run build = (Run) executable;
-	
+	            getNode().buildEnded(build);
+	            recordUsage(build);
+
 	            if( getNode().dockerTemplate.tagOnCompletion ) {
 	                getNode().commitOnTerminate( build );
 	            }
@@ -64,6 +129,12 @@ public class DockerComputer extends AbstractCloudComputer<DockerSlave> {
     	try {
     		LOGGER.log(Level.FINE, " Computer " + this + " taskCompletedWithProblems");
 	        super.taskCompletedWithProblems(executor, task, durationMS, problems);
+
+	        Queue.Executable executable = executor.getCurrentExecutable();
+	        if( executable instanceof Run) {
+	            getNode().buildEnded((Run) executable);
+	            recordUsage((Run) executable);
+	        }
     	}
     	finally {
     		haveWeRunAnyJobs.set(true);
@@ -74,7 +145,9 @@ public class DockerComputer extends AbstractCloudComputer<DockerSlave> {
     @Override
     public boolean isAcceptingTasks() {
         boolean result = !haveWeRunAnyJobs() && super.isAcceptingTasks();
-        LOGGER.log(Level.FINE, " Computer " + this + " isAcceptingTasks " + result);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, " Computer " + this + " isAcceptingTasks " + result);
+        }
         return result;
     }
 
@@ -2,26 +2,46 @@ package com.nirima.jenkins.plugins.docker;
 
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.TaskListener;
 import hudson.model.Descriptor;
+import hudson.model.Slave;
+import hudson.remoting.Channel;
 import hudson.plugins.sshslaves.SSHConnector;
 import hudson.plugins.sshslaves.SSHLauncher;
+import hudson.security.ACL;
+import hudson.slaves.Cloud;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
+import hudson.util.StreamCopyThread;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import jenkins.model.Jenkins;
 
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHAuthenticator;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.github.dockerjava.client.DockerException;
 import com.github.dockerjava.client.model.ContainerInspectResponse;
 import com.github.dockerjava.client.model.ExposedPort;
 import com.github.dockerjava.client.model.Ports.Binding;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
 
 
 /**
@@ -35,16 +55,101 @@ public class DockerComputerLauncher extends ComputerLauncher {
     private static final Logger LOGGER = Logger.getLogger(DockerComputerLauncher.class.getName());
 
 
-    public final ContainerInspectResponse detail;
+    /**
+     * Full inspect data of the container, only read from slaves saved by older versions.
+     */
+    @Deprecated
+    private ContainerInspectResponse detail;
+
     public final DockerTemplate template;
 
-    public DockerComputerLauncher(DockerTemplate template, ContainerInspectResponse containerInspectResponse) {
+    // all the launcher needs of the container; they are not final so that older slaves can be converted on load
+    private String containerId;
+    private String host;
+    private int port;
+
+    public DockerComputerLauncher(DockerTemplate template, ContainerInspectResponse containerInspectResponse) throws MalformedURLException {
         this.template = template;
-        this.detail = containerInspectResponse;
+        this.containerId = containerInspectResponse.getId();
+        resolveSsh(template.getParent(), containerInspectResponse);
+        DETAILS.put(containerId, containerInspectResponse);
+    }
+
+    protected Object readResolve() {
+        if (detail != null) {
+            // the clouds may not be loaded yet, so host and port are only worked out when the slave is launched
+            containerId = detail.getId();
+        }
+        return this;
+    }
+
+    /**
+     * Works out the host and port of a launcher saved by an older version from its inspect data.
+     */
+    private synchronized void resolveLegacyDetail() throws IOException {
+        if (detail == null) {
+            return;
+        }
+        DockerCloud cloud = getCloud();
+        if (cloud == null) {
+            throw new IOException("No Docker cloud with a template for " + template.image);
+        }
+        resolveSsh(cloud, detail);
+        detail = null;
+    }
+
+    private DockerCloud getCloud() {
+        if (template.getParent() != null) {
+            return template.getParent();
+        }
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof DockerCloud && ((DockerCloud) cloud).getTemplate(template.image) != null) {
+                return (DockerCloud) cloud;
+            }
+        }
+        return null;
+    }
+
+    public String getContainerId() {
+        return containerId;
+    }
+
+    public String getHost() throws IOException {
+        resolveLegacyDetail();
+        return host;
+    }
+
+    public int getPort() throws IOException {
+        resolveLegacyDetail();
+        return port;
+    }
+
+    /**
+     * Gets the inspect data of the container from Docker. Recently used data is kept in a small cache shared by all
+     * launchers.
+     */
+    public ContainerInspectResponse getDetail() throws DockerException {
+        ContainerInspectResponse response = DETAILS.getIfPresent(containerId);
+        if (response == null) {
+            DockerCloud cloud = getCloud();
+            if (cloud == null) {
+                throw new DockerException("No Docker cloud with a template for " + template.image);
+            }
+            response = cloud.connect().inspectContainerCmd(containerId).exec();
+            DETAILS.put(containerId, response);
+        }
+        return response;
     }
 
     @Override
     public void launch(SlaveComputer _computer, TaskListener listener) throws IOException, InterruptedException {
+        resolveLegacyDetail();
+        if (template.slaveJarPath != null && launchCachedSlaveJar(_computer, listener)) {
+            LOGGER.log(Level.INFO, "Launched " + _computer + " from cached " + template.slaveJarPath + ", "
+                    + cachedJarLaunches.incrementAndGet() + " launches skipped the agent jar transfer so far");
+            return;
+        }
+
         SSHLauncher launcher = getSSHLauncher();
         int attemptsRemaining = 4;
         while (launcher.getConnection() == null && attemptsRemaining > 0) {
@@ -71,7 +176,141 @@ public class DockerComputerLauncher extends ComputerLauncher {
         }
     }
 
-    public SSHLauncher getSSHLauncher() throws MalformedURLException {
+    /**
+     * Starts the agent from the slave.jar already in the container if its checksum matches the master's copy.
+     *
+     * @return false if the cached jar is missing or different, and the agent must be launched by {@link SSHLauncher}.
+     */
+    private boolean launchCachedSlaveJar(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
+        Connection attempt = null;
+        int attemptsRemaining = 4;
+        while (attempt == null) {
+            Thread.sleep(1000L * (5 - attemptsRemaining)); // sleep for a few seconds - 1, 2, 3, 4
+            attempt = new Connection(host, port);
+            try {
+                attempt.connect();
+            }
+            catch (IOException e) {
+                attempt.close();
+                attempt = null;
+                if (--attemptsRemaining == 0) {
+                    LOGGER.log(Level.WARNING, "Failed to ssh to Docker container to check the cached agent jar", e);
+                    return false;
+                }
+            }
+        }
+
+        final Connection connection = attempt;
+        boolean launched = false;
+        try {
+            StandardUsernameCredentials credentials = CredentialsMatchers.firstOrNull(
+                    CredentialsProvider.lookupCredentials(StandardUsernameCredentials.class, Jenkins.getInstance(),
+                            ACL.SYSTEM, SSHLauncher.SSH_SCHEME),
+                    CredentialsMatchers.withId(template.credentialsId));
+            if (credentials == null || !SSHAuthenticator.newInstance(connection, credentials).authenticate(listener)) {
+                return false;
+            }
+
+            ByteArrayOutputStream checksum = new ByteArrayOutputStream();
+            if (connection.exec("md5sum '" + template.slaveJarPath + "'", checksum) != 0
+                    || !checksum.toString().startsWith(getSlaveJarChecksum())) {
+                listener.getLogger().println("Cached agent jar " + template.slaveJarPath + " does not match, copying it");
+                return false;
+            }
+
+            String java = Strings.isNullOrEmpty(template.javaPath) ? "java" : template.javaPath;
+            String cmd = Util.fixNull(template.prefixStartSlaveCmd)
+                    + "cd \"" + computer.getNode().getRemoteFS() + "\" && "
+                    + java + " " + Util.fixNull(template.jvmOptions) + " -jar '" + template.slaveJarPath + "'"
+                    + Util.fixNull(template.suffixStartSlaveCmd);
+
+            final Session session = connection.openSession();
+            expandChannelBufferSize(session);
+            session.execCommand(cmd);
+            // the agent reports why it could not start on stderr
+            new StreamCopyThread("stderr copier for agent on " + computer.getDisplayName(), session.getStderr(),
+                    listener.getLogger()).start();
+            computer.setChannel(session.getStdout(), session.getStdin(), listener, new Channel.Listener() {
+                @Override
+                public void onClosed(Channel channel, IOException cause) {
+                    session.close();
+                    connection.close();
+                }
+            });
+            launched = true;
+            return true;
+        }
+        catch (IOException e) {
+            // authentication or the session failed; SSHLauncher may still get through
+            listener.getLogger().println("Failed to start the cached agent jar: " + e);
+            LOGGER.log(Level.WARNING, "Failed to start the cached agent jar in " + containerId, e);
+            return false;
+        }
+        finally {
+            if (!launched) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * All traffic between master and agent goes through this session, so it gets a larger window than the default,
+     * as {@link SSHLauncher} does. Older trilead versions cannot set it.
+     */
+    private static void expandChannelBufferSize(Session session) {
+        try {
+            session.getClass().getMethod("setWindowSize", int.class).invoke(session, 4 * 1024 * 1024);
+        }
+        catch (Exception e) {
+            LOGGER.log(Level.FINE, "Cannot expand the window of the agent session", e);
+        }
+    }
+
+    private static String getSlaveJarChecksum() throws IOException {
+        if (slaveJarChecksum == null) {
+            InputStream in = new Slave.JnlpJar("slave.jar").getURL().openStream();
+            try {
+                slaveJarChecksum = Util.getDigestOf(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        return slaveJarChecksum;
+    }
+
+    /**
+     * Number of launches that used a cached agent jar instead of copying it into the container.
+     */
+    public static int getCachedJarLaunches() {
+        return cachedJarLaunches.get();
+    }
+
+    /**
+     * Works out where sshd of the container is reached. Through a unix socket the daemon runs on this machine, so the
+     * container is reached directly on its bridge address; otherwise through the port published on the Docker host.
+     */
+    private void resolveSsh(DockerCloud cloud, ContainerInspectResponse detail) throws MalformedURLException {
+        if (cloud.isUnixSocket()) {
+            host = detail.getNetworkSettings().getIpAddress();
+            port = 22;
+        } else {
+            host = new URL(cloud.serverUrl).getHost();
+            port = getSshHostPort(detail);
+        }
+    }
+
+    private static int getSshHostPort(ContainerInspectResponse detail) {
+    	Map<ExposedPort, Binding> portBindingMap = detail.getNetworkSettings().getPorts().getBindings();
+    	for (Entry<ExposedPort, Binding> portBinding : portBindingMap.entrySet()) {
+    		if (22 == portBinding.getKey().getPort()) {
+    			return Integer.valueOf(portBinding.getValue().getHostPort());
+    		}
+    	}
+    	throw new RuntimeException("Host port not found for the SSH port");
+    }
+
+    public SSHLauncher getSSHLauncher() throws IOException {
         /**
          * ContainerInspectResponse{
          * id='970d68eb7410bca37ccc8ac193ae68a324f7d286012c1994dcf58a28daa76da2', created='2014-01-09T12:19:37.322591068Z',
@@ -79,24 +318,10 @@ public class DockerComputerLauncher extends ComputerLauncher {
          * config=ContainerConfig{hostName=970d68eb7410, portSpecs=null, user=, tty=false, stdinOpen=false, stdInOnce=false, memoryLimit=0, memorySwap=0, cpuShares=0, attachStdin=false, attachStdout=false, attachStderr=false, env=null, cmd=[Ljava.lang.String;@658782a7, dns=null, image=jenkins-3, volumes=null, volumesFrom=, entrypoint=null, networkDisabled=false, privileged=false, workingDir=, domainName=, exposedPorts={22/tcp={}}}, state=ContainerState{running=true, pid=8032, exitCode=0, startedAt='2014-01-09T12:19:37.400471534Z', ghost=false, finishedAt='0001-01-01T00:00:00Z'}, image='0ca6c5d5135db3ffb8abfef6a0861a0d2e44b6f37a33b4012a3f2d5cc99f68e9',
          * networkSettings=NetworkSettings{ipAddress='172.17.0.58', ipPrefixLen=16, gateway='172.17.42.1', bridge='docker0', ports={22/tcp=[Lcom.github.dockerjava.client.model.PortBinding;@2392d604}}, sysInitPath='null', resolvConfPath='/etc/resolv.conf', volumes={}, volumesRW={}, hostnamePath='/var/lib/docker/containers/970d68eb7410bca37ccc8ac193ae68a324f7d286012c1994dcf58a28daa76da2/hostname', hostsPath='/var/lib/docker/containers/970d68eb7410bca37ccc8ac193ae68a324f7d286012c1994dcf58a28daa76da2/hosts', name='/prickly_turing', driver='aufs'}
          */
-    	int hostPort = -1;
-    	Map<ExposedPort, Binding> portBindingMap = detail.getNetworkSettings().getPorts().getBindings();
-    	for (Entry<ExposedPort, Binding> portBinding : portBindingMap.entrySet()) {
-    		if (22 == portBinding.getKey().getPort()) {
-    			hostPort = Integer.valueOf(portBinding.getValue().getHostPort());
-    			break;
-    		}
-    	}
-    	if (hostPort == -1) {
-    		throw new RuntimeException("Host port not found for the SSH port");
-    	}
+        resolveLegacyDetail();
+        LOGGER.log(Level.INFO, "Creating slave SSH launcher for " + host + ":" + port);
 
-        URL hostUrl = new URL(template.getParent().serverUrl);
-        String host = hostUrl.getHost();
-        
-        LOGGER.log(Level.INFO, "Creating slave SSH launcher for " + host + ":" + hostPort);
-
-        return new SSHLauncher(host, hostPort, template.credentialsId, template.jvmOptions , template.javaPath, template.prefixStartSlaveCmd, template.suffixStartSlaveCmd);
+        return new SSHLauncher(host, port, template.credentialsId, template.jvmOptions , template.javaPath, template.prefixStartSlaveCmd, template.suffixStartSlaveCmd);
     }
     
     @Override
@@ -105,6 +330,15 @@ public class DockerComputerLauncher extends ComputerLauncher {
     	super.beforeDisconnect(computer, listener);
     }
 
+    private static final AtomicInteger cachedJarLaunches = new AtomicInteger();
+
+    private static volatile String slaveJarChecksum;
+
+    private static final Cache<String, ContainerInspectResponse> DETAILS = CacheBuilder.newBuilder()
+            .maximumSize(100)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+
     @Extension
     public static class DescriptorImpl extends Descriptor<ComputerLauncher> {
 
@@ -0,0 +1,71 @@
+package com.nirima.jenkins.plugins.docker;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.slaves.Cloud;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import com.github.dockerjava.client.model.Container;
+
+/**
+ * Notices containers of Docker slaves that died, were killed or removed outside Jenkins, and removes their slaves.
+ *
+ * The Docker client has no event stream, so the running containers of every cloud are listed each second.
+ */
+@Extension
+public class DockerContainerWatcher extends PeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(DockerContainerWatcher.class.getName());
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 1000;
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        for (Cloud c : Jenkins.getInstance().clouds) {
+            if (!(c instanceof DockerCloud)) {
+                continue;
+            }
+            DockerCloud cloud = (DockerCloud) c;
+
+            // slaves registered after the containers are listed are checked on the next pass
+            List<DockerSlave> slaves = new ArrayList<DockerSlave>();
+            for (DockerSlave slave : DockerSlave.all()) {
+                // by name, as slaves provisioned before the configuration was saved belong to a replaced cloud object
+                DockerCloud owner = slave.getCloud();
+                if (owner != null && owner.name.equals(cloud.name)) {
+                    slaves.add(slave);
+                }
+            }
+            if (slaves.isEmpty() || !cloud.getCircuitBreaker().isAvailable(cloud)) {
+                continue;
+            }
+
+            Set<String> running = new HashSet<String>();
+            try {
+                for (Container container : cloud.listRunningContainers()) {
+                    running.add(container.getId());
+                }
+            }
+            catch (Exception e) {
+                LOGGER.log(Level.FINE, "Failed to list the containers of " + cloud.name, e);
+                continue;
+            }
+
+            for (DockerSlave slave : slaves) {
+                if (!running.contains(slave.containerId)) {
+                    slave.containerDied();
+                }
+            }
+        }
+    }
+}
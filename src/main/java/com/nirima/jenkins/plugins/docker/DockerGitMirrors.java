@@ -0,0 +1,138 @@
+package com.nirima.jenkins.plugins.docker;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import com.github.dockerjava.client.DockerClient;
+import com.github.dockerjava.client.DockerException;
+import com.github.dockerjava.client.model.Bind;
+import com.github.dockerjava.client.model.Volume;
+
+/**
+ * Keeps bare mirrors of the Git repositories configured on a {@link DockerCloud} on its Docker host.
+ *
+ * The mirrors are mounted read-only into every container, so jobs can clone with {@code --reference} and only
+ * fetch what the mirror is missing. The host has no Jenkins on it, so each refresh runs {@code git} in a throwaway
+ * container of the cloud's mirror image with the mirror directory bound into it. The image is pulled before each
+ * round of refreshes.
+ */
+@Extension
+public class DockerGitMirrors extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(DockerGitMirrors.class.getName());
+
+    public DockerGitMirrors() {
+        super("Docker Git mirrors");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 15 * MIN;
+    }
+
+    @Override
+    public long getInitialDelay() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof DockerCloud && !((DockerCloud) cloud).getGitMirrorUrls().isEmpty()) {
+                DockerCloud dockerCloud = (DockerCloud) cloud;
+                try {
+                    pull(dockerCloud, listener);
+                }
+                catch (Exception e) {
+                    // the image may still be there from an earlier pull
+                    LOGGER.log(Level.WARNING, "Failed to pull " + dockerCloud.gitMirrorImage + " on " + cloud.name, e);
+                }
+                for (String url : dockerCloud.getGitMirrorUrls()) {
+                    try {
+                        refresh(dockerCloud, url, listener);
+                    }
+                    catch (DockerException e) {
+                        LOGGER.log(Level.WARNING, "Failed to refresh the mirror of " + url + " on " + cloud.name, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Pulls the mirror image, which is not used by any template and so is not otherwise on the host.
+     */
+    private void pull(DockerCloud cloud, TaskListener listener) throws DockerException, IOException {
+        String repository = cloud.gitMirrorImage;
+        String tag = "latest";
+        int colon = repository.lastIndexOf(':');
+        if (colon > repository.lastIndexOf('/')) {
+            tag = repository.substring(colon + 1);
+            repository = repository.substring(0, colon);
+        }
+
+        // the pull only completes once its progress stream has been read to the end
+        InputStream progress = cloud.connect().pullImageCmd(repository).withTag(tag).exec();
+        try {
+            IOUtils.copy(progress, new NullOutputStream());
+        }
+        finally {
+            progress.close();
+        }
+        listener.getLogger().println("Pulled " + cloud.gitMirrorImage + " on " + cloud.name);
+    }
+
+    private void refresh(DockerCloud cloud, String url, TaskListener listener) throws DockerException {
+        String dir = cloud.gitMirrorPath + "/" + mirrorName(url);
+        // a failed clone leaves only the temporary directory behind, which the next refresh starts over
+        String script = "if [ -d \"$2\" ]; then git --git-dir=\"$2\" remote update --prune; "
+                + "else rm -rf \"$2.tmp\" && git clone --mirror \"$1\" \"$2.tmp\" && mv \"$2.tmp\" \"$2\"; fi";
+
+        DockerClient client = cloud.connect();
+        Volume volume = new Volume(cloud.gitMirrorPath);
+        String containerId = client.createContainerCmd(cloud.gitMirrorImage)
+                .withCmd("sh", "-c", script, "sh", url, dir)
+                .withVolumes(volume)
+                .exec()
+                .getId();
+        try {
+            client.startContainerCmd(containerId)
+                    .withBinds(new Bind(cloud.gitMirrorPath, volume))
+                    .exec();
+            int status = client.waitContainerCmd(containerId).exec();
+            if (status != 0) {
+                String message = "Failed to refresh the mirror of " + url + " on " + cloud.name + ", exit status " + status;
+                LOGGER.log(Level.WARNING, message);
+                listener.getLogger().println(message);
+            } else {
+                listener.getLogger().println("Refreshed the mirror of " + url + " on " + cloud.name);
+            }
+        }
+        finally {
+            client.removeContainerCmd(containerId).exec();
+        }
+    }
+
+    /**
+     * Name of the directory under the mirror path that holds the mirror of a repository,
+     * for example {@code github.com_jenkinsci_docker-plugin.git}.
+     */
+    public static String mirrorName(String url) {
+        String name = url.trim()
+                .replaceFirst("^[A-Za-z+]+://", "")
+                .replaceFirst("^[^@/]+@", "")
+                .replaceAll("[^A-Za-z0-9._-]+", "_");
+        return name.endsWith(".git") ? name : name + ".git";
+    }
+}
@@ -0,0 +1,152 @@
+package com.nirima.jenkins.plugins.docker;
+
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * The images that builds committed on the host of a {@link DockerCloud} and that have not been removed yet, so that
+ * {@link DockerImageRetention} never has to load build records to find them.
+ *
+ * Images are added by {@link DockerSlave#commit()}, and stay listed when their build is deleted. Every container
+ * started from one marks it as used. The index is saved as {@code docker-images/<cloud>.xml} in the Jenkins home,
+ * and like {@link DockerAllocator} it is kept per cloud name so that it outlives reconfigurations of the cloud.
+ */
+final class DockerImageIndex {
+    private static final Logger LOGGER = Logger.getLogger(DockerImageIndex.class.getName());
+
+    private static final ConcurrentMap<String, DockerImageIndex> INDEXES = new ConcurrentHashMap<String, DockerImageIndex>();
+
+    static final class Entry {
+        final String imageId;
+        final String name; // repository:tag
+        final String job;
+        final int build;
+        final long committed;
+        volatile long lastUsed;
+
+        Entry(String imageId, String name, String job, int build, long committed) {
+            this.imageId = imageId;
+            this.name = name;
+            this.job = job;
+            this.build = build;
+            this.committed = committed;
+            this.lastUsed = committed;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    // whether images recorded in build actions before there was an index have been added
+    private boolean imported;
+
+    private transient XmlFile file;
+
+    /**
+     * Gets the index of the cloud with the given name, loading it on first use.
+     */
+    static DockerImageIndex forCloud(String cloudName) {
+        DockerImageIndex index = INDEXES.get(cloudName);
+        if (index == null) {
+            INDEXES.putIfAbsent(cloudName, load(cloudName));
+            index = INDEXES.get(cloudName);
+        }
+        return index;
+    }
+
+    private static DockerImageIndex load(String cloudName) {
+        DockerImageIndex index = new DockerImageIndex();
+        index.file = new XmlFile(Jenkins.XSTREAM,
+                new File(Jenkins.getInstance().getRootDir(), "docker-images/" + Util.rawEncode(cloudName) + ".xml"));
+        if (index.file.exists()) {
+            try {
+                index.file.unmarshal(index);
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load " + index.file, e);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Records an image committed from the container of a build.
+     */
+    synchronized void add(String imageId, String name, Run<?, ?> run) {
+        entries.add(new Entry(imageId, name, run.getParent().getFullName(), run.getNumber(),
+                System.currentTimeMillis()));
+        save();
+    }
+
+    /**
+     * Marks the image a container is about to be started from as used, if it is one of the committed ones.
+     */
+    synchronized void used(String image) {
+        for (Entry e : entries) {
+            if (image.equals(e.name) || shortId(image).equals(shortId(e.imageId))) {
+                e.lastUsed = System.currentTimeMillis();
+                save();
+                return;
+            }
+        }
+    }
+
+    synchronized void remove(Entry entry) {
+        if (entries.remove(entry)) {
+            save();
+        }
+    }
+
+    synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries);
+    }
+
+    synchronized boolean isImported() {
+        return imported;
+    }
+
+    synchronized void imported(List<Entry> found) {
+        for (Entry e : found) {
+            if (!contains(e.imageId)) {
+                entries.add(e);
+            }
+        }
+        imported = true;
+        save();
+    }
+
+    private boolean contains(String imageId) {
+        for (Entry e : entries) {
+            if (shortId(e.imageId).equals(shortId(imageId))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void save() {
+        try {
+            file.write(this);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+        }
+    }
+
+    /**
+     * Image ids are reported in full or abbreviated form depending on the call, so they are compared by their prefix.
+     */
+    static String shortId(String id) {
+        return id.length() > 12 ? id.substring(0, 12) : id;
+    }
+}
@@ -0,0 +1,178 @@
+package com.nirima.jenkins.plugins.docker;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import com.github.dockerjava.client.DockerClient;
+import com.github.dockerjava.client.DockerException;
+import com.github.dockerjava.client.model.Image;
+import com.nirima.jenkins.plugins.docker.action.DockerBuildAction;
+
+/**
+ * Removes images committed by {@link DockerSlave#commit()} once they fall outside the
+ * per-job count or per-host size budget of their {@link DockerCloud}.
+ *
+ * Only images listed in the {@link DockerImageIndex} of the cloud are considered, so base images and images
+ * committed by anything else are never touched. The least recently used images are evicted first, and the
+ * {@link DockerBuildAction} of the build that produced each one is marked as removed.
+ */
+@Extension
+public class DockerImageRetention extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(DockerImageRetention.class.getName());
+
+    public DockerImageRetention() {
+        super("Docker image retention");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 10 * MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof DockerCloud) {
+                try {
+                    evict((DockerCloud) cloud, listener);
+                }
+                catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to apply image retention to " + cloud.name, e);
+                }
+            }
+        }
+    }
+
+    private void evict(DockerCloud cloud, TaskListener listener) throws DockerException {
+        if (cloud.committedImagesPerJob == 0 && cloud.committedImagesSizeMb == 0) {
+            return;
+        }
+
+        DockerImageIndex index = DockerImageIndex.forCloud(cloud.name);
+        if (!index.isImported()) {
+            index.imported(findCommittedImages(cloud));
+        }
+        List<DockerImageIndex.Entry> entries = index.getEntries();
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        DockerClient client = cloud.connect();
+        Map<String, Image> images = new HashMap<String, Image>();
+        for (Image image : client.listImagesCmd().exec()) {
+            images.put(DockerImageIndex.shortId(image.getId()), image);
+        }
+        List<CommittedImage> committed = new ArrayList<CommittedImage>();
+        for (DockerImageIndex.Entry entry : entries) {
+            Image image = images.get(DockerImageIndex.shortId(entry.imageId));
+            if (image != null) {
+                committed.add(new CommittedImage(entry, image));
+            } else {
+                // removed by someone else
+                index.remove(entry);
+            }
+        }
+
+        // most recently used first, so everything past a budget is the least recently used
+        Collections.sort(committed, new Comparator<CommittedImage>() {
+            public int compare(CommittedImage a, CommittedImage b) {
+                return a.entry.lastUsed < b.entry.lastUsed ? 1 : a.entry.lastUsed == b.entry.lastUsed ? 0 : -1;
+            }
+        });
+
+        Map<String, Integer> perJob = new HashMap<String, Integer>();
+        long budget = cloud.committedImagesSizeMb * 1024 * 1024;
+        long kept = 0;
+        for (CommittedImage c : committed) {
+            Integer count = perJob.get(c.entry.job);
+            count = count == null ? 1 : count + 1;
+            perJob.put(c.entry.job, count);
+
+            boolean overCount = cloud.committedImagesPerJob > 0 && count > cloud.committedImagesPerJob;
+            boolean overSize = budget > 0 && kept + c.image.getSize() > budget;
+            if (!overCount && !overSize) {
+                kept += c.image.getSize();
+                continue;
+            }
+
+            try {
+                client.removeImageCmd(c.image.getId()).exec();
+                listener.getLogger().println("Removed image " + c.entry.name + " committed by " + c.entry.job + " #"
+                        + c.entry.build + " from " + cloud.serverUrl);
+                index.remove(c.entry);
+                markRemoved(c.entry);
+            }
+            catch (DockerException e) {
+                // most likely still used by a container; try again on the next pass
+                LOGGER.log(Level.FINE, "Failed to remove image " + c.entry.name, e);
+                kept += c.image.getSize();
+            }
+        }
+    }
+
+    /**
+     * Collects the images that builds recorded before there was an index, so that they are still evicted. This walks
+     * every build once, on the first pass over a cloud.
+     */
+    private List<DockerImageIndex.Entry> findCommittedImages(DockerCloud cloud) {
+        List<DockerImageIndex.Entry> committed = new ArrayList<DockerImageIndex.Entry>();
+        for (Job job : Jenkins.getInstance().getAllItems(Job.class)) {
+            for (Object o : job.getBuilds()) {
+                Run run = (Run) o;
+                DockerBuildAction action = run.getAction(DockerBuildAction.class);
+                if (action != null && action.taggedId != null && !action.isRemoved()
+                        && cloud.serverUrl.equals(action.containerHost)) {
+                    committed.add(new DockerImageIndex.Entry(action.taggedId,
+                            job.getDisplayName() + ":" + run.getDisplayName(), job.getFullName(), run.getNumber(),
+                            run.getTimeInMillis()));
+                }
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * Marks the action of the build that committed the image as removed, if the build is still there.
+     */
+    private void markRemoved(DockerImageIndex.Entry entry) {
+        Job job = Jenkins.getInstance().getItemByFullName(entry.job, Job.class);
+        Run run = job == null ? null : job.getBuildByNumber(entry.build);
+        DockerBuildAction action = run == null ? null : run.getAction(DockerBuildAction.class);
+        if (action == null) {
+            return;
+        }
+        action.markRemoved();
+        try {
+            run.save();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + run, e);
+        }
+    }
+
+    private static class CommittedImage {
+        final DockerImageIndex.Entry entry;
+        final Image image;
+
+        CommittedImage(DockerImageIndex.Entry entry, Image image) {
+            this.entry = entry;
+            this.image = image;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.nirima.jenkins.plugins.docker;
+
+import hudson.model.Item;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.slaves.Cloud;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Remembers which Docker host recently ran each job and template, so new containers go where the image layers,
+ * committed images and cache volumes are already present.
+ *
+ * A {@link DockerCloud} provisions nothing for a label when most of the queued work for it last ran on another
+ * cloud that could start a container for it right now, so that Jenkins moves on to that cloud.
+ */
+public final class DockerLocality {
+    private static final Logger LOGGER = Logger.getLogger(DockerLocality.class.getName());
+
+    private static final int ENTRIES = 1000;
+
+    // job full name or template image to the name of the cloud it last ran on, least recently used first
+    private static final Map<String, String> HOSTS = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > ENTRIES;
+        }
+    };
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private DockerLocality() {
+    }
+
+    /**
+     * Records that a task ran on the given cloud.
+     */
+    public static void ranOn(Queue.Task task, DockerCloud cloud) {
+        put(key(task), cloud);
+    }
+
+    /**
+     * Records that a container of the template was started on the given cloud.
+     */
+    public static void startedOn(DockerTemplate template, DockerCloud cloud) {
+        put("image:" + template.image, cloud);
+    }
+
+    /**
+     * Gets the cloud most of the queued work for the label last ran on, if that is not the given cloud and it could
+     * start a container for the label right now, within its caps, workspace memory, priorities and reservations.
+     */
+    static DockerCloud preferredElsewhere(DockerCloud cloud, Label label) {
+        DockerCloud preferred = preferred(cloud, label);
+        if (preferred == null || preferred.name.equals(cloud.name)) {
+            return null;
+        }
+        DockerTemplate t = preferred.getTemplate(label);
+        if (t == null || !preferred.getCircuitBreaker().isAvailable(preferred) || !preferred.canStartContainer(t)) {
+            return null;
+        }
+        return preferred;
+    }
+
+    /**
+     * Counts a provisioning on the given cloud towards the hit rate.
+     */
+    static void provisioned(DockerCloud cloud, Label label) {
+        DockerCloud preferred = preferred(cloud, label);
+        if (preferred != null && preferred.name.equals(cloud.name)) {
+            hits.incrementAndGet();
+        } else if (preferred != null) {
+            misses.incrementAndGet();
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Locality hit rate " + getHitRate() + "% over " + (hits.get() + misses.get()) + " provisions");
+        }
+    }
+
+    /**
+     * Percentage of provisions with a known preferred host that went to that host.
+     */
+    public static long getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 100 : 100 * h / total;
+    }
+
+    private static DockerCloud preferred(DockerCloud cloud, Label label) {
+        Map<String, Integer> votes = new HashMap<String, Integer>();
+        for (Queue.BuildableItem item : Jenkins.getInstance().getQueue().getBuildableItems()) {
+            if (label != null && !label.equals(item.getAssignedLabel())) {
+                continue;
+            }
+            String host = get(key(item.task));
+            if (host != null) {
+                Integer count = votes.get(host);
+                votes.put(host, count == null ? 1 : count + 1);
+            }
+        }
+
+        String best = null;
+        int bestVotes = 0;
+        for (Map.Entry<String, Integer> vote : votes.entrySet()) {
+            if (vote.getValue() > bestVotes) {
+                best = vote.getKey();
+                bestVotes = vote.getValue();
+            }
+        }
+        if (best == null) {
+            DockerTemplate template = cloud.getTemplate(label);
+            best = template == null ? null : get("image:" + template.image);
+        }
+        if (best == null) {
+            return null;
+        }
+
+        Cloud preferred = Jenkins.getInstance().getCloud(best);
+        return preferred instanceof DockerCloud ? (DockerCloud) preferred : null;
+    }
+
+    private static String key(Queue.Task task) {
+        Queue.Task owner = task.getOwnerTask();
+        return owner instanceof Item ? ((Item) owner).getFullName() : owner.getFullDisplayName();
+    }
+
+    private static synchronized void put(String key, DockerCloud cloud) {
+        HOSTS.put(key, cloud.name);
+    }
+
+    private static synchronized String get(String key) {
+        return HOSTS.get(key);
+    }
+}
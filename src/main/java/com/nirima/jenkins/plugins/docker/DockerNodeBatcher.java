@@ -0,0 +1,133 @@
+package com.nirima.jenkins.plugins.docker;
+
+import hudson.model.Computer;
+import hudson.model.Messages;
+import hudson.model.Node;
+import hudson.slaves.OfflineCause;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Registers and removes Docker slaves in batches.
+ *
+ * Every {@link Jenkins#addNode(Node)} and {@link Jenkins#removeNode(Node)} rebuilds the computer list and saves the
+ * whole configuration while holding the Jenkins lock. During a burst the changes that arrive within a short window
+ * are applied together with a single {@link Jenkins#setNodes(List)}.
+ */
+final class DockerNodeBatcher {
+    private static final Logger LOGGER = Logger.getLogger(DockerNodeBatcher.class.getName());
+
+    private static final class Change {
+        final Node node;
+        final boolean add;
+        final SettableFuture<Void> done = SettableFuture.create();
+
+        Change(Node node, boolean add) {
+            this.node = node;
+            this.add = add;
+        }
+    }
+
+    // guarded by DockerNodeBatcher.class
+    private static List<Change> pending = new ArrayList<Change>();
+    private static boolean scheduled;
+
+    private DockerNodeBatcher() {
+    }
+
+    /**
+     * Registers a node with Jenkins in the next batch.
+     *
+     * @return completes once the node is registered.
+     */
+    static Future<Void> add(Node node) {
+        return enqueue(new Change(node, true));
+    }
+
+    /**
+     * Removes a node from Jenkins in the next batch.
+     *
+     * @return completes once the node is removed.
+     */
+    static Future<Void> remove(Node node) {
+        return enqueue(new Change(node, false));
+    }
+
+    private static synchronized Future<Void> enqueue(Change change) {
+        pending.add(change);
+        if (!scheduled) {
+            scheduled = true;
+            Timer.get().schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return change.done;
+    }
+
+    private static void flush() {
+        List<Change> batch;
+        synchronized (DockerNodeBatcher.class) {
+            batch = pending;
+            pending = new ArrayList<Change>();
+            scheduled = false;
+        }
+
+        Jenkins jenkins = Jenkins.getInstance();
+        try {
+            for (Change change : batch) {
+                Computer computer = change.node.toComputer();
+                if (!change.add && computer != null) {
+                    computer.disconnect(OfflineCause.create(Messages._Hudson_NodeBeingRemoved()));
+                }
+            }
+
+            // same lock as Jenkins.addNode() and Jenkins.removeNode()
+            synchronized (jenkins) {
+                List<Node> nodes = new ArrayList<Node>(jenkins.getNodes());
+                for (Change change : batch) {
+                    if (change.add) {
+                        nodes.add(change.node);
+                    } else {
+                        nodes.remove(change.node);
+                    }
+                }
+                jenkins.setNodes(nodes);
+            }
+            LOGGER.log(Level.FINE, "Applied " + batch.size() + " node changes");
+
+            for (Change change : batch) {
+                change.done.set(null);
+            }
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to apply " + batch.size() + " node changes", e);
+            for (Change change : batch) {
+                change.done.setException(e);
+            }
+        }
+        catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to apply " + batch.size() + " node changes", e);
+            for (Change change : batch) {
+                change.done.setException(e);
+            }
+        }
+    }
+
+    /**
+     * How long changes are collected before they are applied, in milliseconds.
+     */
+    public static long WINDOW_MILLIS = Long.getLong(DockerNodeBatcher.class.getName() + ".windowMillis", 250);
+}
@@ -0,0 +1,185 @@
+package com.nirima.jenkins.plugins.docker;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.PeriodicWork;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Samples the resource usage of busy Docker slaves.
+ *
+ * The slave reads the figures from {@code /proc}; as the container has its own process and network namespaces they
+ * only cover the container. All slaves are asked at once, so a pass takes about as long as the slowest answer.
+ * For templates with an in-memory workspace the size of the workspace is measured too.
+ */
+@Extension
+public class DockerResourceSampler extends PeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(DockerResourceSampler.class.getName());
+
+    private long lastWorkspacePass;
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.SECONDS.toMillis(INTERVAL);
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        // du walks the whole workspace, so it runs on a longer interval than the /proc reads
+        boolean measureWorkspaces = System.currentTimeMillis() - lastWorkspacePass
+                >= TimeUnit.SECONDS.toMillis(WORKSPACE_INTERVAL);
+        if (measureWorkspaces) {
+            lastWorkspacePass = System.currentTimeMillis();
+        }
+
+        Map<DockerComputer, Future<Sample>> pending = new HashMap<DockerComputer, Future<Sample>>();
+        for (Computer c : Jenkins.getInstance().getComputers()) {
+            if (c instanceof DockerComputer && !c.isIdle()) {
+                VirtualChannel channel = c.getChannel();
+                DockerSlave slave = ((DockerComputer) c).getNode();
+                if (channel != null && slave != null) {
+                    List<String> workspaces = measureWorkspaces && slave.dockerTemplate.workspaceSizeMb > 0
+                            ? slave.dockerTemplate.getWorkspaceMounts() : null;
+                    pending.put((DockerComputer) c, channel.callAsync(new ReadSample(workspaces)));
+                }
+            }
+        }
+
+        for (Map.Entry<DockerComputer, Future<Sample>> e : pending.entrySet()) {
+            try {
+                e.getKey().recordSample(e.getValue().get(INTERVAL, TimeUnit.SECONDS));
+            }
+            catch (Exception ex) {
+                e.getValue().cancel(true);
+                LOGGER.log(Level.FINE, "Failed to sample " + e.getKey(), ex);
+            }
+        }
+    }
+
+    /**
+     * Cumulative counters of a container at one point in time.
+     */
+    public static class Sample implements java.io.Serializable {
+        public final long time = System.currentTimeMillis();
+        public long cpuTicks;
+        public long memoryBytes;
+        public long blockBytes;
+        public long netBytes;
+        public long workspaceBytes = -1; // not measured in this sample
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class ReadSample implements Callable<Sample, IOException> {
+        private final List<String> workspaces;
+
+        /**
+         * @param workspaces to measure, or null to leave the workspace size out of this sample.
+         */
+        ReadSample(List<String> workspaces) {
+            this.workspaces = workspaces == null ? null : new ArrayList<String>(workspaces);
+        }
+
+        public Sample call() throws IOException {
+            Sample sample = new Sample();
+            if (workspaces != null) {
+                sample.workspaceBytes = 0;
+                for (String workspace : workspaces) {
+                    sample.workspaceBytes += du(workspace);
+                }
+            }
+            File[] processes = new File("/proc").listFiles();
+            if (processes != null) {
+                for (File process : processes) {
+                    if (!process.getName().matches("\\d+")) {
+                        continue;
+                    }
+                    try {
+                        // utime, stime, cutime and cstime follow the command name, which may contain spaces
+                        String stat = read(new File(process, "stat"));
+                        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                        for (int i = 11; i <= 14; i++) {
+                            sample.cpuTicks += Long.parseLong(fields[i]);
+                        }
+                        sample.memoryBytes += Long.parseLong(read(new File(process, "statm")).split(" ")[1]) * 4096;
+                        for (String line : read(new File(process, "io")).split("\n")) {
+                            if (line.startsWith("read_bytes:") || line.startsWith("write_bytes:")) {
+                                sample.blockBytes += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                            }
+                        }
+                    }
+                    catch (Exception e) {
+                        // the process went away or is not ours to read
+                    }
+                }
+            }
+            for (String line : read(new File("/proc/net/dev")).split("\n")) {
+                int colon = line.indexOf(':');
+                if (colon < 0 || line.substring(0, colon).trim().equals("lo")) {
+                    continue;
+                }
+                String[] fields = line.substring(colon + 1).trim().split("\\s+");
+                sample.netBytes += Long.parseLong(fields[0]) + Long.parseLong(fields[8]);
+            }
+            return sample;
+        }
+
+        private static long du(String path) throws IOException {
+            Process du = new ProcessBuilder("du", "-sk", path).start();
+            try {
+                String out = new BufferedReader(new InputStreamReader(du.getInputStream())).readLine();
+                return out == null ? 0 : Long.parseLong(out.split("\\s+")[0]) * 1024;
+            }
+            catch (NumberFormatException e) {
+                return 0;
+            }
+            finally {
+                du.destroy();
+            }
+        }
+
+        private static String read(File file) throws IOException {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                StringBuilder b = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    b.append(line).append('\n');
+                }
+                return b.toString();
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Seconds between two samples.
+     */
+    public static int INTERVAL = Integer.getInteger(DockerResourceSampler.class.getName() + ".interval", 10);
+
+    /**
+     * Seconds between two measurements of the size of in-memory workspaces.
+     */
+    public static int WORKSPACE_INTERVAL = Integer.getInteger(DockerResourceSampler.class.getName() + ".workspaceInterval", 60);
+}
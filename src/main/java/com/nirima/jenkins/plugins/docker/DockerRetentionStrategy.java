@@ -20,11 +20,13 @@ public class DockerRetentionStrategy  extends RetentionStrategy<DockerComputer>
 
     @Override
     public synchronized long check(DockerComputer c) {
-        LOGGER.log(Level.FINE, "Checking " + c);
-        if (c.isIdle() && c.isOnline() && !disabled && c.haveWeRunAnyJobs()) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Checking " + c);
+        }
+        if (c.isOnline() && !disabled) {
             // TODO: really think about the right strategy here
             final long idleMilliseconds = System.currentTimeMillis() - c.getIdleStartMilliseconds();
-            if (idleMilliseconds > 0) {
+            if (DockerCapacity.shouldTerminate(c.isIdle(), c.haveWeRunAnyJobs(), idleMilliseconds)) {
                 LOGGER.info("Idle timeout: "+c.getName());
                 LOGGER.log(Level.INFO, "Terminating " + c);
                 c.getNode().retentionTerminate();
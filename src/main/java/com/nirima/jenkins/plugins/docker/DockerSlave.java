@@ -5,20 +5,33 @@ import hudson.model.Messages;
 import hudson.model.TaskListener;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Executor;
 import hudson.model.Label;
 import hudson.model.Node.Mode;
 import hudson.model.Queue;
+import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.queue.CauseOfBlockage;
+import hudson.security.ACL;
 import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.Cloud;
 import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.RetentionStrategy;
 import hudson.triggers.SafeTimerTask;
+import hudson.util.DescribableList;
+import hudson.util.StreamTaskListener;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,22 +46,64 @@ import com.github.dockerjava.client.DockerClient;
 import com.github.dockerjava.client.DockerException;
 import com.github.dockerjava.client.model.CommitConfig;
 import com.nirima.jenkins.plugins.docker.action.DockerBuildAction;
+import com.nirima.jenkins.plugins.docker.action.DockerTimelineAction;
 
 
 public class DockerSlave extends AbstractCloudSlave {
 
     private static final Logger LOGGER = Logger.getLogger(DockerSlave.class.getName());
 
+    private static final ConcurrentMap<String, DockerSlave> SLAVES = new ConcurrentHashMap<String, DockerSlave>();
+
     public final DockerTemplate dockerTemplate;
     public final String containerId;
 
+    private String cloudName; // null for slaves saved by older versions
 
     private transient Run theRun;
 
+    private transient DockerTimelineAction timeline;
+    private transient Run timelineRun;
+
+    private transient volatile boolean containerDied;
+    private transient boolean terminating;
+    private transient boolean terminated;
+
+    private transient volatile Map<Label, Boolean> labelVerdicts;
+
     public DockerSlave(DockerTemplate dockerTemplate, String containerId, String name, String nodeDescription, String remoteFS, int numExecutors, Mode mode, String labelString, ComputerLauncher launcher, RetentionStrategy retentionStrategy, List<? extends NodeProperty<?>> nodeProperties) throws Descriptor.FormException, IOException {
         super(name, nodeDescription, remoteFS, numExecutors, mode, labelString, launcher, retentionStrategy, nodeProperties);
         this.dockerTemplate = dockerTemplate;
         this.containerId = containerId;
+        this.cloudName = dockerTemplate.getParent().name;
+        SLAVES.put(containerId, this);
+    }
+
+    @Override
+    protected Object readResolve() {
+        SLAVES.put(containerId, this);
+        return super.readResolve();
+    }
+
+    /**
+     * Gets the slave running in the given container, if any.
+     */
+    public static DockerSlave forContainer(String containerId) {
+        return SLAVES.get(containerId);
+    }
+
+    /**
+     * Forgets a slave that is never going to be registered with Jenkins.
+     */
+    void discard() {
+        SLAVES.remove(containerId, this);
+    }
+
+    /**
+     * All slaves that have not been terminated yet.
+     */
+    public static Collection<DockerSlave> all() {
+        return Collections.unmodifiableCollection(SLAVES.values());
     }
 
     /**
@@ -58,29 +113,104 @@ public class DockerSlave extends AbstractCloudSlave {
     @Override
     public CauseOfBlockage canTake(Queue.BuildableItem item) {
         Label l = item.getAssignedLabel();
-        if(l!=null && !l.contains(this))
+        if(l!=null && !containsThis(l))
             return CauseOfBlockage.fromMessage(Messages._Node_LabelMissing(getNodeName(),l));   // the task needs to be executed on label that this node doesn't have.
 
-        Authentication identity = item.authenticate();
-        if (!getACL().hasPermission(identity,Computer.BUILD)) {
+        if (!hasBuildPermission(item)) {
             // doesn't have a permission
             // TODO: does it make more sense to define a separate permission?
+            Authentication identity = item.authenticate();
             return CauseOfBlockage.fromMessage(Messages._Node_LackingBuildPermission(identity.getName(),getNodeName()));
         }
 
         // Check each NodeProperty to see whether they object to this node
         // taking the task
-        for (NodeProperty prop: getNodeProperties()) {
-            CauseOfBlockage c = prop.canTake(item);
-            if (c!=null)    return c;
+        DescribableList<NodeProperty<?>, NodePropertyDescriptor> properties = getNodeProperties();
+        if (!properties.isEmpty()) {
+            for (NodeProperty prop: properties) {
+                CauseOfBlockage c = prop.canTake(item);
+                if (c!=null)    return c;
+            }
         }
 
         // Looks like we can take the task
         return null;
     }
 
+    /**
+     * The labels of a Docker slave never change, so whether a label contains it is only worked out once.
+     */
+    private boolean containsThis(Label l) {
+        Map<Label, Boolean> verdicts = labelVerdicts;
+        if (verdicts == null) {
+            labelVerdicts = verdicts = new ConcurrentHashMap<Label, Boolean>();
+        }
+        Boolean contains = verdicts.get(l);
+        if (contains == null) {
+            if (verdicts.size() > 64) {
+                verdicts.clear();
+            }
+            contains = l.contains(this);
+            verdicts.put(l, contains);
+        }
+        return contains;
+    }
+
+    /**
+     * Docker slaves usually share their ACL, so the permission check of a task is shared between them for as long
+     * as a queue maintenance pass takes.
+     */
+    private boolean hasBuildPermission(Queue.BuildableItem item) {
+        long now = System.currentTimeMillis();
+        PermissionVerdicts cycle = permissionVerdicts;
+        if (now >= cycle.expires) {
+            permissionVerdicts = cycle = new PermissionVerdicts(now + PERMISSION_CACHE_MILLIS);
+        }
+
+        ACL acl = getACL();
+        ConcurrentMap<Queue.Task, Boolean> byTask = cycle.verdicts.get(acl);
+        if (byTask == null) {
+            cycle.verdicts.putIfAbsent(acl, new ConcurrentHashMap<Queue.Task, Boolean>());
+            byTask = cycle.verdicts.get(acl);
+        }
+        Boolean permitted = byTask.get(item.task);
+        if (permitted == null) {
+            permitted = acl.hasPermission(item.authenticate(), Computer.BUILD);
+            byTask.put(item.task, permitted);
+        }
+        return permitted;
+    }
+
+    private static final class PermissionVerdicts {
+        final long expires;
+        final ConcurrentMap<ACL, ConcurrentMap<Queue.Task, Boolean>> verdicts = new ConcurrentHashMap<ACL, ConcurrentMap<Queue.Task, Boolean>>();
+
+        PermissionVerdicts(long expires) {
+            this.expires = expires;
+        }
+    }
+
+    private static volatile PermissionVerdicts permissionVerdicts = new PermissionVerdicts(0);
+
+    /**
+     * Gets the cloud this slave was provisioned by. It is looked up every time, as saving the global configuration
+     * replaces the clouds.
+     */
     public DockerCloud getCloud() {
-        return dockerTemplate.getParent();
+        if (cloudName != null) {
+            Cloud cloud = Jenkins.getInstance().getCloud(cloudName);
+            if (cloud instanceof DockerCloud) {
+                return (DockerCloud) cloud;
+            }
+        }
+        // older slaves do not know their cloud, and a cloud may have been renamed; go by the image of the template
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof DockerCloud && ((DockerCloud) cloud).getTemplate(dockerTemplate.image) != null) {
+                cloudName = cloud.name;
+                return (DockerCloud) cloud;
+            }
+        }
+        return null;
     }
 
     @Override
@@ -92,11 +222,54 @@ public class DockerSlave extends AbstractCloudSlave {
        this.theRun = run;
     }
 
+    void setTimeline(DockerTimelineAction timeline) {
+        this.timeline = timeline;
+    }
+
+    /**
+     * Gets the provisioning timeline of this slave, or null if it was provisioned before Jenkins was restarted.
+     */
+    public DockerTimelineAction getTimeline() {
+        return timeline;
+    }
+
+    /**
+     * Attaches the timeline to the build that ran on this slave. The build is saved again once the container
+     * is gone, so that the termination time ends up on it too.
+     */
+    void buildEnded(Run run) {
+        if (timeline != null) {
+            timeline.buildEnded();
+            run.addAction(timeline);
+            timelineRun = run;
+        }
+    }
+
     @Override
     public DockerComputer createComputer() {
         return new DockerComputer(this);
     }
 
+    /**
+     * Same as {@link AbstractCloudSlave#terminate()}, except that the node is removed along with the other Docker
+     * slaves terminated at about the same time, and that only the first call does anything.
+     */
+    @Override
+    public void terminate() throws InterruptedException, IOException {
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+            terminated = terminating = true;
+        }
+        try {
+            _terminate(new StreamTaskListener(System.out, Charset.defaultCharset()));
+        }
+        finally {
+            DockerNodeBatcher.remove(this);
+        }
+    }
+
     @Override
     protected void _terminate(TaskListener listener) throws IOException, InterruptedException {
         DockerClient client = getClient();
@@ -105,9 +278,11 @@ public class DockerSlave extends AbstractCloudSlave {
         	LOGGER.log(Level.INFO, "Disconnecting slave " + super.getDisplayName());
             toComputer().disconnect(null);
             try {
-            	client.stopContainerCmd(containerId).exec();
+                if (!containerDied) {
+                    client.stopContainerCmd(containerId).exec();
+                }
 
-                if (theRun != null) {
+                if (theRun != null && !containerDied) {
                     try {
                         commit();
                     }
@@ -117,7 +292,9 @@ public class DockerSlave extends AbstractCloudSlave {
                 }
                 
                 try {
-                	client.removeContainerCmd(containerId).exec();
+                	client.removeContainerCmd(containerId)
+                	    .withRemoveVolumes(!dockerTemplate.getWorkspaceMounts().isEmpty())
+                	    .exec();
                 }
                 catch (DockerException e) {
                     LOGGER.log(Level.SEVERE, "Failure to remove container " + containerId, e);
@@ -132,6 +309,11 @@ public class DockerSlave extends AbstractCloudSlave {
         }
         finally {
         	try {
+	        	// the host directories of the workspaces are removed even if the slave never connected or already died
+	        	if (client != null) {
+	        		dockerTemplate.removeWorkspaceDirectories(client, containerId);
+	        	}
+
 	        	// delete log directory/files
 	        	File slaveLogDir = new File(Jenkins.getInstance().getRootDir(), "logs/slaves/" + getDisplayName());
 	        	if (slaveLogDir.exists()) {
@@ -139,26 +321,45 @@ public class DockerSlave extends AbstractCloudSlave {
 	        	}
         	}
         	finally {
+        		SLAVES.remove(containerId, this);
         		dockerTemplate.containerTerminated(this, listener);
+        		saveTimeline();
         	}
         }
     }
 
+    private void saveTimeline() {
+        if (timeline == null || timelineRun == null) {
+            return;
+        }
+        timeline.terminated();
+        try {
+            timelineRun.save();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save provisioning timeline of " + timelineRun, e);
+        }
+        timelineRun = null;
+    }
+
     public void commit() throws DockerException, IOException {
         DockerClient client = getClient();
 
+        String repository = theRun.getParent().getDisplayName();
+        String tag = theRun.getDisplayName();
         String tag_image = client.commitCmd(containerId)
         	.withAuthor("Jenkins")
-            .withRepository(theRun.getParent().getDisplayName())
-            .withTag(theRun.getDisplayName())
+            .withRepository(repository)
+            .withTag(tag)
             .exec();
 
         theRun.addAction( new DockerBuildAction(getCloud().serverUrl, containerId, tag_image) );
         theRun.save();
+        DockerImageIndex.forCloud(getCloud().name).add(tag_image, repository + ":" + tag, theRun);
     }
 
     public DockerClient getClient() {
-        return dockerTemplate.getParent().connect();
+        return getCloud().connect();
     }
 
     /**
@@ -166,9 +367,42 @@ public class DockerSlave extends AbstractCloudSlave {
      */
     public void onConnected() {
     	LOGGER.info("Docker provisioned slave " + getDisplayName() + " connected");
+        if (timeline != null) {
+            timeline.agentLaunched();
+        }
+    }
+
+    /**
+     * Called when the container went away behind our back: stops the slave taking builds, aborts the one it is
+     * running and removes the slave.
+     */
+    public void containerDied() {
+        synchronized (this) {
+            if (terminating) {
+                return;
+            }
+        }
+        LOGGER.log(Level.WARNING, "Container " + containerId + " of Docker slave " + getDisplayName() + " died");
+        containerDied = true;
+        Computer computer = toComputer();
+        if (computer != null) {
+            computer.setAcceptingTasks(false);
+            for (Executor executor : computer.getExecutors()) {
+                if (executor.isBusy()) {
+                    executor.interrupt(Result.ABORTED);
+                }
+            }
+        }
+        retentionTerminate();
     }
 
     public void retentionTerminate() {
+        synchronized (this) {
+            if (terminating) {
+                return;
+            }
+            terminating = true;
+        }
         Timer.get().submit(new SafeTimerTask() {
             public void doRun() {
             	try {
@@ -204,4 +438,9 @@ public class DockerSlave extends AbstractCloudSlave {
 		}
 
 	}
+
+    /**
+     * How long the verdict of a build permission check is reused, in milliseconds.
+     */
+    public static long PERMISSION_CACHE_MILLIS = Long.getLong(DockerSlave.class.getName() + ".permissionCacheMillis", 1000);
 }
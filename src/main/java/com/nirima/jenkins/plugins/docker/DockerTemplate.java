@@ -21,6 +21,8 @@ import hudson.util.ListBoxModel;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
@@ -34,11 +36,13 @@ import org.kohsuke.stapler.DataBoundConstructor;
 
 import com.cloudbees.jenkins.plugins.sshcredentials.SSHAuthenticator;
 import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserListBoxModel;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.google.common.base.Strings;
 import com.github.dockerjava.client.DockerClient;
 import com.github.dockerjava.client.DockerException;
+import com.github.dockerjava.client.model.Bind;
 import com.github.dockerjava.client.model.ContainerConfig;
 import com.github.dockerjava.client.model.ContainerCreateResponse;
 import com.github.dockerjava.client.model.ContainerInspectResponse;
@@ -46,7 +50,9 @@ import com.github.dockerjava.client.model.ExposedPort;
 import com.github.dockerjava.client.model.HostConfig;
 import com.github.dockerjava.client.model.Ports;
 import com.github.dockerjava.client.model.Ports.Binding;
+import com.github.dockerjava.client.model.Volume;
 import com.trilead.ssh2.Connection;
+import com.nirima.jenkins.plugins.docker.action.DockerTimelineAction;
 
 /**
  * This is not a Node. It only extends Node for Node-scoped tools.
@@ -87,10 +93,33 @@ public class DockerTemplate implements Describable<DockerTemplate> {
 
     public final String remoteFs; // = "/home/jenkins";
 
+    /**
+     * Path of a slave.jar already present in the container, baked into the image or on a host volume.
+     * When it matches the master's copy the agent is started from it instead of copying one over.
+     */
+    public final String slaveJarPath;
+
+
+    /**
+     * Host directory, for example on a tmpfs, in which every container gets its own directory for the workspace paths.
+     * When empty the workspace paths are Docker volumes on the host's local disk.
+     */
+    public final String workspaceHostPath;
+
+    /**
+     * Comma separated paths under remoteFs to keep out of the container's copy-on-write filesystem.
+     */
+    public final String workspacePaths;
+
+    public final int workspaceSizeMb; // memory held on the host for the workspace paths, 0 if not in memory
+
 
     public final int instanceCap; // maximum number of containers allowed to be created at one time
     public final int minIdleContainers; // minimum number of containers to have waiting for jobs
 
+    public final int priority; // templates with a higher priority get the cloud's capacity first
+    public final int reservedInstances; // number of containers of the cloud's capacity held for this template
+
 
     public final boolean tagOnCompletion;
 
@@ -101,13 +130,17 @@ public class DockerTemplate implements Describable<DockerTemplate> {
     private transient /*almost final*/ Set<LabelAtom> labelSet;
     public transient DockerCloud parent;
 
+    private transient DockerUsageSummary usageSummary;
+
     @DataBoundConstructor
     public DockerTemplate(String image, String labelString,
                           String remoteFs,
                           String credentialsId, String jvmOptions, String javaPath,
                           String prefixStartSlaveCmd, String suffixStartSlaveCmd,
                           boolean tagOnCompletion, String instanceCapStr, int sshPort,
-                          List<? extends NodeProperty<?>> nodeProperties, String minIdleContainersStr)
+                          List<? extends NodeProperty<?>> nodeProperties, String minIdleContainersStr,
+                          int priority, String reservedInstancesStr, String slaveJarPath,
+                          String workspaceHostPath, String workspacePaths, String workspaceSizeMbStr)
     throws IOException {
         this.image = image;
         this.labelString = Util.fixNull(labelString);
@@ -117,6 +150,15 @@ public class DockerTemplate implements Describable<DockerTemplate> {
         this.prefixStartSlaveCmd = prefixStartSlaveCmd;
         this.suffixStartSlaveCmd = suffixStartSlaveCmd;
         this.remoteFs =  Strings.isNullOrEmpty(remoteFs)?"/home/jenkins":remoteFs;
+        this.slaveJarPath = Util.fixEmptyAndTrim(slaveJarPath);
+        this.workspaceHostPath = Util.fixEmptyAndTrim(workspaceHostPath);
+        this.workspacePaths = Util.fixEmptyAndTrim(workspacePaths);
+
+        if (Strings.isNullOrEmpty(workspaceSizeMbStr)) {
+            this.workspaceSizeMb = 0;
+        } else {
+            this.workspaceSizeMb = Integer.parseInt(workspaceSizeMbStr);
+        }
         this.tagOnCompletion = tagOnCompletion;
 
         if (Strings.isNullOrEmpty(instanceCapStr)) {
@@ -135,6 +177,18 @@ public class DockerTemplate implements Describable<DockerTemplate> {
         	throw new RuntimeException("Minimum number of idle containers must be less than or equals to the container cap.");
         }
 
+        this.priority = priority;
+
+        if (Strings.isNullOrEmpty(reservedInstancesStr)) {
+            this.reservedInstances = 0;
+        } else {
+            this.reservedInstances = Integer.parseInt(reservedInstancesStr);
+        }
+
+        if (this.reservedInstances > this.instanceCap) {
+        	throw new RuntimeException("Number of reserved containers must be less than or equals to the container cap.");
+        }
+
         this.sshPort = sshPort;
         
         this.nodeProperties.replaceBy(nodeProperties);
@@ -162,6 +216,99 @@ public class DockerTemplate implements Describable<DockerTemplate> {
         return minIdleContainers;
     }
 
+    public String getWorkspaceSizeMbStr() {
+        if (workspaceSizeMb == 0) {
+            return "";
+        } else {
+            return String.valueOf(workspaceSizeMb);
+        }
+    }
+
+    /**
+     * Paths in the container that are mounted from the host rather than kept in the container's filesystem.
+     */
+    public List<String> getWorkspaceMounts() {
+        List<String> mounts = new ArrayList<String>();
+        if (workspaceHostPath == null && workspacePaths == null) {
+            return mounts;
+        }
+        // default to the workspaces only, the rest of remoteFs may hold the slave's ssh keys
+        for (String path : Util.tokenize(workspacePaths == null ? "workspace" : workspacePaths, ",")) {
+            mounts.add(remoteFs + "/" + path.trim());
+        }
+        return mounts;
+    }
+
+    /**
+     * Command of the container. Docker creates the workspace paths, and the host directories they are bound to,
+     * owned by root; so when there are any they are handed to the ssh user before sshd is started.
+     */
+    private String[] getContainerCmd(List<String> mounts) {
+        String user = getSshUsername();
+        if (mounts.isEmpty() || user == null) {
+            return new String[] {"/usr/sbin/sshd", "-D"};
+        }
+        // the user and the paths are passed as arguments, so that no quoting of them is needed
+        List<String> cmd = new ArrayList<String>(Arrays.asList("sh", "-c",
+                "u=\"$1\"; shift; mkdir -p -- \"$@\" && chown -- \"$u:\" \"$@\" && exec /usr/sbin/sshd -D",
+                "sh", user));
+        cmd.addAll(mounts);
+        return cmd.toArray(new String[cmd.size()]);
+    }
+
+    private String getSshUsername() {
+        StandardUsernameCredentials credentials = CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(StandardUsernameCredentials.class, Jenkins.getInstance(),
+                        ACL.SYSTEM, SSHLauncher.SSH_SCHEME),
+                CredentialsMatchers.withId(credentialsId));
+        return credentials == null ? null : credentials.getUsername();
+    }
+
+    /**
+     * Removes the host directories that the workspace paths of a container were bound to. The host has no Jenkins
+     * on it and the container may be gone, so this runs {@code rm} in a throwaway container of the template's image.
+     */
+    void removeWorkspaceDirectories(DockerClient client, String containerId) {
+        if (workspaceHostPath == null) {
+            return;
+        }
+        String dir = workspaceHostPath + "/" + containerId.substring(0, 12);
+        Volume volume = new Volume(workspaceHostPath);
+        try {
+            String cleanerId = client.createContainerCmd(image)
+                    .withCmd("rm", "-rf", dir)
+                    .withVolumes(volume)
+                    .exec()
+                    .getId();
+            try {
+                client.startContainerCmd(cleanerId)
+                        .withBinds(new Bind(workspaceHostPath, volume))
+                        .exec();
+                client.waitContainerCmd(cleanerId).exec();
+            }
+            finally {
+                client.removeContainerCmd(cleanerId).exec();
+            }
+        }
+        catch (DockerException e) {
+            LOGGER.log(Level.WARNING, "Failure to remove workspace directory " + dir + " from the Docker host", e);
+        }
+    }
+
+    public String getReservedInstancesStr() {
+        return String.valueOf(reservedInstances);
+    }
+
+    /**
+     * Peak resource usage of the recent builds in containers of this template.
+     */
+    public synchronized DockerUsageSummary getUsageSummary() {
+        if (usageSummary == null) {
+            usageSummary = new DockerUsageSummary();
+        }
+        return usageSummary;
+    }
+
     public Descriptor<DockerTemplate> getDescriptor() {
         return Jenkins.getInstance().getDescriptor(getClass());
     }
@@ -198,45 +345,86 @@ public class DockerTemplate implements Describable<DockerTemplate> {
 
         RetentionStrategy retentionStrategy = new DockerRetentionStrategy();//RetentionStrategy.INSTANCE;
 
+        DockerTimelineAction timeline = new DockerTimelineAction();
+        timeline.provisionStarted();
+
+        List<String> mounts = getWorkspaceMounts();
+        Volume[] volumes = new Volume[mounts.size()];
+        for (int i = 0; i < volumes.length; i++) {
+            volumes[i] = new Volume(mounts.get(i));
+        }
+        Volume gitMirrors = null;
+        if (!getParent().getGitMirrorUrls().isEmpty()) {
+            gitMirrors = new Volume(getParent().gitMirrorPath);
+            volumes = Arrays.copyOf(volumes, volumes.length + 1);
+            volumes[volumes.length - 1] = gitMirrors;
+        }
+
+        // keeps a committed image this template runs from at the back of the eviction order
+        DockerImageIndex.forCloud(getParent().name).used(image);
         ContainerCreateResponse container = dockerClient.createContainerCmd(image)
-        		.withCmd("/usr/sbin/sshd", "-D")
+        		.withCmd(getContainerCmd(mounts))
         		.withExposedPorts(ExposedPort.tcp(22))
+        		.withVolumes(volumes)
         		.exec();
         String containerId = container.getId();
+        timeline.containerCreated();
+
+        List<Bind> binds = new ArrayList<Bind>();
+        if (workspaceHostPath != null) {
+            for (int i = 0; i < mounts.size(); i++) {
+                String hostPath = workspaceHostPath + "/" + containerId.substring(0, 12) + volumes[i].getPath();
+                binds.add(new Bind(hostPath, volumes[i]));
+            }
+        }
+        if (gitMirrors != null) {
+            binds.add(new Bind(gitMirrors.getPath(), gitMirrors, true));
+        }
 
         // Launch it..
         boolean removeContainer = true;
+        boolean started = false;
         try {
 	        Ports bports = new Ports();
 	        bports.bind(ExposedPort.tcp(22), new Binding("0.0.0.0", sshPort));
 
         	dockerClient.startContainerCmd(containerId)
         		.withPortBindings(bports)
+        		.withBinds(binds.toArray(new Bind[binds.size()]))
         		.exec();
-        	removeContainer = false;
+        	started = true;
+        	timeline.containerStarted();
+
+	        ContainerInspectResponse containerInspectResponse = dockerClient.inspectContainerCmd(containerId).exec();
+
+	        ComputerLauncher launcher = new DockerComputerLauncher(this, containerInspectResponse);
+	        timeline.ready();
+
+	        String nodeName = this.image + "-" + containerId.substring(0, 12);
+	        DockerSlave slave = new DockerSlave(this, containerId,
+	        		nodeName,
+	                nodeDescription,
+	                remoteFs, numExecutors, mode, labelString,
+	                launcher, retentionStrategy, nodeProperties);
+	        slave.setTimeline(timeline);
+	        removeContainer = false;
+	        return slave;
         }
         finally {
+        	// anything failing after the container was created leaves no slave behind to remove it
         	if (removeContainer) {
 	            try {
+	            	if (started) {
+	            		dockerClient.stopContainerCmd(containerId).exec();
+	            	}
 	            	dockerClient.removeContainerCmd(containerId).exec();
 	            }
 	            catch (DockerException e) {
-	                LOGGER.log(Level.SEVERE, "Failure to remove container " + containerId + " that did not start.", e);
+	                LOGGER.log(Level.SEVERE, "Failure to remove container " + containerId + " that failed to provision.", e);
 	            }
+	            removeWorkspaceDirectories(dockerClient, containerId);
         	}
         }
-
-        ContainerInspectResponse containerInspectResponse = dockerClient.inspectContainerCmd(containerId).exec();
-
-        ComputerLauncher launcher = new DockerComputerLauncher(this, containerInspectResponse);
-
-        String nodeName = this.image + "-" + containerId.substring(0, 12);
-        return new DockerSlave(this, containerId,
-        		nodeName,
-                nodeDescription,
-                remoteFs, numExecutors, mode, labelString,
-                launcher, retentionStrategy, nodeProperties);
-
     }
 
     public int getNumExecutors() {
@@ -268,6 +456,6 @@ public class DockerTemplate implements Describable<DockerTemplate> {
     }
 
 	void containerTerminated(DockerSlave dockerSlave, TaskListener listener) {
-		parent.containerTerminated(this, dockerSlave, listener);
+		dockerSlave.getCloud().containerTerminated(this, dockerSlave, listener);
 	}
 }
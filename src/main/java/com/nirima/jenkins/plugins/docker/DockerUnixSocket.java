@@ -0,0 +1,212 @@
+package com.nirima.jenkins.plugins.docker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeSocketFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import com.github.dockerjava.client.DockerClient;
+import com.github.dockerjava.client.DockerException;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
+
+/**
+ * Talks to a Docker daemon through its unix domain socket, such as {@code unix:///var/run/docker.sock}.
+ *
+ * docker-java only speaks HTTP over TCP, so the client is created for a placeholder TCP address and the connection
+ * manager of its HTTP client is then given a socket factory that opens the socket file instead. Connections are pooled
+ * and kept alive like TCP ones.
+ */
+final class DockerUnixSocket implements SchemeSocketFactory {
+
+    // any address will do, the socket factory ignores it
+    private static final String PLACEHOLDER_URL = "http://localhost:2375";
+
+    private final File path;
+
+    private DockerUnixSocket(File path) {
+        this.path = path;
+    }
+
+    /**
+     * Creates a client for the daemon listening on the given socket file.
+     */
+    static DockerClient createClient(File path) throws DockerException {
+        DockerClient client = new DockerClient(PLACEHOLDER_URL);
+        try {
+            Field field = DockerClient.class.getDeclaredField("client");
+            field.setAccessible(true);
+            HttpClient httpClient = ((ApacheHttpClient4) field.get(client)).getClientHandler().getHttpClient();
+            // the stale check reads with a 1ms timeout, which the socket cannot honour
+            HttpConnectionParams.setStaleCheckingEnabled(httpClient.getParams(), false);
+            httpClient.getConnectionManager().getSchemeRegistry().register(
+                    new Scheme("http", 2375, new DockerUnixSocket(path)));
+        } catch (Exception e) {
+            throw new DockerException("Cannot set up a client for the socket " + path, e);
+        }
+        return client;
+    }
+
+    public Socket createSocket(HttpParams params) {
+        return new UnixSocket(path);
+    }
+
+    public Socket connectSocket(Socket socket, InetSocketAddress remoteAddress, InetSocketAddress localAddress,
+            HttpParams params) throws IOException {
+        if (socket == null) {
+            socket = createSocket(params);
+        }
+        socket.connect(remoteAddress);
+        return socket;
+    }
+
+    public boolean isSecure(Socket socket) {
+        return false;
+    }
+
+    /**
+     * {@link Socket} over a unix domain socket channel, with just what the HTTP client uses. Socket options do not
+     * apply and are ignored, so reads are not limited by the read timeout.
+     */
+    private static final class UnixSocket extends Socket {
+        private final File path;
+        private UnixSocketChannel channel;
+        private int soTimeout;
+
+        UnixSocket(File path) {
+            this.path = path;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            try {
+                channel = UnixSocketChannel.open(new UnixSocketAddress(path));
+            } catch (IOException e) {
+                throw new IOException("Cannot connect to " + path + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public boolean isConnected() {
+            return channel != null && channel.isConnected();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return channel != null && !channel.isOpen();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            checkConnected();
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+                }
+
+                @Override
+                public void close() throws IOException {
+                    UnixSocket.this.close();
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            checkConnected();
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    UnixSocket.this.close();
+                }
+            };
+        }
+
+        private void checkConnected() throws IOException {
+            if (!isConnected()) {
+                throw new IOException("Not connected to " + path);
+            }
+        }
+
+        @Override
+        public void shutdownInput() {
+        }
+
+        @Override
+        public void shutdownOutput() {
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) {
+            soTimeout = timeout;
+        }
+
+        @Override
+        public int getSoTimeout() {
+            return soTimeout;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) {
+        }
+
+        @Override
+        public int getReceiveBufferSize() {
+            return 8192;
+        }
+
+        @Override
+        public int getSendBufferSize() {
+            return 8192;
+        }
+
+        @Override
+        public String toString() {
+            return "UnixSocket[" + path + "]";
+        }
+    }
+}
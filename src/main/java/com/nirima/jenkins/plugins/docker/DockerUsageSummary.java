@@ -0,0 +1,59 @@
+package com.nirima.jenkins.plugins.docker;
+
+import java.util.Arrays;
+
+import com.nirima.jenkins.plugins.docker.action.DockerResourceUsageAction;
+
+/**
+ * Peak usage of the most recent builds of a {@link DockerTemplate}, to help size its containers.
+ */
+public class DockerUsageSummary {
+
+    private static final int BUILDS = 100;
+
+    private final float[] peakCpu = new float[BUILDS];
+    private final float[] peakMemoryMb = new float[BUILDS];
+    private int count;
+    private int next;
+
+    public synchronized void record(DockerResourceUsageAction usage) {
+        peakCpu[next] = usage.getPeakCpu();
+        peakMemoryMb[next] = usage.getPeakMemoryMb();
+        next = (next + 1) % BUILDS;
+        count = Math.min(BUILDS, count + 1);
+    }
+
+    public synchronized int getBuilds() {
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     */
+    public synchronized float getPeakCpu(int percentile) {
+        return percentile(peakCpu, percentile);
+    }
+
+    public synchronized float getPeakMemoryMb(int percentile) {
+        return percentile(peakMemoryMb, percentile);
+    }
+
+    private float percentile(float[] values, int percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        float[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, count * percentile / 100)];
+    }
+
+    @Override
+    public String toString() {
+        if (getBuilds() == 0) {
+            return "no builds sampled yet";
+        }
+        return String.format("%d builds, peak memory p50 %.0f MB, p95 %.0f MB, max %.0f MB; peak cpu p50 %.0f%%, p95 %.0f%%, max %.0f%%",
+                getBuilds(), getPeakMemoryMb(50), getPeakMemoryMb(95), getPeakMemoryMb(100),
+                getPeakCpu(50), getPeakCpu(95), getPeakCpu(100));
+    }
+}
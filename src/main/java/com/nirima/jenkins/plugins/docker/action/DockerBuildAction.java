@@ -19,12 +19,25 @@ public class DockerBuildAction implements Action, Serializable, Cloneable, Descr
 
     public final String taggedId;
 
+    /**
+     * Set once the committed image has been removed from the host.
+     */
+    private boolean removed;
+
     public DockerBuildAction(String containerHost, String containerId, String taggedId) {
         this.containerHost = containerHost;
         this.containerId = containerId;
         this.taggedId = taggedId;
     }
 
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    public void markRemoved() {
+        this.removed = true;
+    }
+
     public String getIconFileName() {
         return "/plugin/docker-plugin/images/24x24/docker.png";
     }
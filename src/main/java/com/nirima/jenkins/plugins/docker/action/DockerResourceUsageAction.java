@@ -0,0 +1,153 @@
+package com.nirima.jenkins.plugins.docker.action;
+
+import hudson.model.Action;
+
+import java.io.Serializable;
+
+/**
+ * Resource usage of the container a build ran in, as a fixed size time series.
+ *
+ * Once all points are used, neighbouring points are merged and the interval doubles, so a build of any length is
+ * described by at most {@link #POINTS} points.
+ */
+public class DockerResourceUsageAction implements Action, Serializable {
+
+    public static final int POINTS = 64;
+
+    private final int sampleSeconds;
+    private int intervalSeconds;
+    private int size;
+
+    // for every point: cpu in percent of one core, peak memory in MB, block and network I/O in KB/s
+    private final float[] cpu = new float[POINTS];
+    private final float[] memoryMb = new float[POINTS];
+    private final float[] blockKbs = new float[POINTS];
+    private final float[] netKbs = new float[POINTS];
+
+    private float workspacePeakMb;
+    private int workspaceLimitMb;
+    private boolean workspaceWarned;
+
+    // samples merged into the point being filled
+    private transient int pending;
+
+    public DockerResourceUsageAction(int sampleSeconds) {
+        this.sampleSeconds = sampleSeconds;
+        this.intervalSeconds = sampleSeconds;
+    }
+
+    public synchronized void add(float cpu, float memoryMb, float blockKbs, float netKbs) {
+        if (size == POINTS && pending == 0) {
+            for (int i = 0; i < POINTS / 2; i++) {
+                merge(i, 2 * i, 2 * i + 1);
+            }
+            size = POINTS / 2;
+            intervalSeconds *= 2;
+        }
+
+        if (pending == 0) {
+            this.cpu[size] = cpu;
+            this.memoryMb[size] = memoryMb;
+            this.blockKbs[size] = blockKbs;
+            this.netKbs[size] = netKbs;
+            size++;
+        } else {
+            int last = size - 1;
+            this.cpu[last] = (this.cpu[last] * pending + cpu) / (pending + 1);
+            this.memoryMb[last] = Math.max(this.memoryMb[last], memoryMb);
+            this.blockKbs[last] = (this.blockKbs[last] * pending + blockKbs) / (pending + 1);
+            this.netKbs[last] = (this.netKbs[last] * pending + netKbs) / (pending + 1);
+        }
+        pending = (pending + 1) % samplesPerPoint();
+    }
+
+    private int samplesPerPoint() {
+        return intervalSeconds / sampleSeconds;
+    }
+
+    private void merge(int to, int a, int b) {
+        cpu[to] = (cpu[a] + cpu[b]) / 2;
+        memoryMb[to] = Math.max(memoryMb[a], memoryMb[b]);
+        blockKbs[to] = (blockKbs[a] + blockKbs[b]) / 2;
+        netKbs[to] = (netKbs[a] + netKbs[b]) / 2;
+    }
+
+    /**
+     * Records the size of an in-memory workspace.
+     *
+     * @return true the first time the workspace comes within 10% of its limit.
+     */
+    public synchronized boolean recordWorkspace(float workspaceMb, int limitMb) {
+        workspacePeakMb = Math.max(workspacePeakMb, workspaceMb);
+        workspaceLimitMb = limitMb;
+        if (workspaceWarned || workspaceMb < limitMb * 0.9f) {
+            return false;
+        }
+        workspaceWarned = true;
+        return true;
+    }
+
+    public float getWorkspacePeakMb() {
+        return workspacePeakMb;
+    }
+
+    public int getWorkspaceLimitMb() {
+        return workspaceLimitMb;
+    }
+
+    public boolean isWorkspaceNearLimit() {
+        return workspaceWarned;
+    }
+
+    public int getIntervalSeconds() {
+        return intervalSeconds;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized float getPeakCpu() {
+        return max(cpu);
+    }
+
+    public synchronized float getPeakMemoryMb() {
+        return max(memoryMb);
+    }
+
+    public synchronized float getPeakBlockKbs() {
+        return max(blockKbs);
+    }
+
+    public synchronized float getPeakNetKbs() {
+        return max(netKbs);
+    }
+
+    public synchronized float getAverageCpu() {
+        float sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += cpu[i];
+        }
+        return size == 0 ? 0 : sum / size;
+    }
+
+    private float max(float[] series) {
+        float max = 0;
+        for (int i = 0; i < size; i++) {
+            max = Math.max(max, series[i]);
+        }
+        return max;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Docker Resource Usage";
+    }
+
+    public String getUrlName() {
+        return "dockerUsage";
+    }
+}
@@ -0,0 +1,122 @@
+package com.nirima.jenkins.plugins.docker.action;
+
+import hudson.Util;
+import hudson.model.Action;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * When a build was queued, when its Docker container was created, started and connected, and when the build ran and
+ * the container went away.
+ */
+public class DockerTimelineAction implements Action, Serializable {
+
+    private long queuedAt;
+    private long provisionStartedAt;
+    private long containerCreatedAt;
+    private long containerStartedAt;
+    private long readyAt;
+    private long agentLaunchedAt;
+    private long buildStartedAt;
+    private long buildEndedAt;
+    private long terminatedAt;
+
+    public void provisionStarted() {
+        provisionStartedAt = System.currentTimeMillis();
+    }
+
+    public void containerCreated() {
+        containerCreatedAt = System.currentTimeMillis();
+    }
+
+    public void containerStarted() {
+        containerStartedAt = System.currentTimeMillis();
+    }
+
+    public void ready() {
+        readyAt = System.currentTimeMillis();
+    }
+
+    public void agentLaunched() {
+        agentLaunchedAt = System.currentTimeMillis();
+    }
+
+    public void buildStarted(long queuedAt) {
+        this.queuedAt = queuedAt;
+        buildStartedAt = System.currentTimeMillis();
+    }
+
+    public void buildEnded() {
+        buildEndedAt = System.currentTimeMillis();
+    }
+
+    public void terminated() {
+        terminatedAt = System.currentTimeMillis();
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    /**
+     * Time from entering the queue until the build started on the container, or -1 if not known.
+     */
+    public long getTimeToExecutorMillis() {
+        return between(queuedAt, buildStartedAt);
+    }
+
+    public long getBuildMillis() {
+        return between(buildStartedAt, buildEndedAt);
+    }
+
+    public List<Phase> getPhases() {
+        List<Phase> phases = new ArrayList<Phase>();
+        add(phases, "Queue wait", queuedAt, buildStartedAt);
+        add(phases, "Container create", provisionStartedAt, containerCreatedAt);
+        add(phases, "Container start", containerCreatedAt, containerStartedAt);
+        add(phases, "Readiness", containerStartedAt, readyAt);
+        add(phases, "Agent launch", readyAt, agentLaunchedAt);
+        add(phases, "Build", buildStartedAt, buildEndedAt);
+        add(phases, "Termination", buildEndedAt, terminatedAt);
+        return phases;
+    }
+
+    private static void add(List<Phase> phases, String name, long from, long to) {
+        long millis = between(from, to);
+        if (millis >= 0) {
+            phases.add(new Phase(name, millis));
+        }
+    }
+
+    private static long between(long from, long to) {
+        return from == 0 || to == 0 ? -1 : Math.max(0, to - from);
+    }
+
+    public static final class Phase {
+        public final String name;
+        public final long millis;
+
+        Phase(String name, long millis) {
+            this.name = name;
+            this.millis = millis;
+        }
+
+        public String getDuration() {
+            return Util.getTimeSpanString(millis);
+        }
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Docker Timeline";
+    }
+
+    public String getUrlName() {
+        return "dockerTimeline";
+    }
+}
@@ -0,0 +1,130 @@
+package com.nirima.jenkins.plugins.docker.action;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.TransientProjectActionFactory;
+import hudson.util.ChartUtil;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.PlotOrientation;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Trend of the time builds of a project waited for a Docker executor, next to how long they ran.
+ */
+public class DockerTimelineProjectAction implements Action {
+
+    private static final int BUILDS = 50;
+
+    public final AbstractProject<?, ?> project;
+
+    public DockerTimelineProjectAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    /**
+     * Whether any recent build has a timeline to show.
+     */
+    public boolean hasTimelines() {
+        int count = 0;
+        for (AbstractBuild<?, ?> build : project.getBuilds()) {
+            if (build.getAction(DockerTimelineAction.class) != null) {
+                return true;
+            }
+            if (++count == BUILDS) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    public void doTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        AbstractBuild<?, ?> last = project.getLastBuild();
+        if (last == null) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        final DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel> data = new DataSetBuilder<String, ChartUtil.NumberOnlyBuildLabel>();
+        int count = 0;
+        for (AbstractBuild<?, ?> build : project.getBuilds()) {
+            DockerTimelineAction timeline = build.getAction(DockerTimelineAction.class);
+            if (timeline != null && timeline.getTimeToExecutorMillis() >= 0) {
+                ChartUtil.NumberOnlyBuildLabel label = new ChartUtil.NumberOnlyBuildLabel(build);
+                data.add(timeline.getTimeToExecutorMillis() / 1000.0, "Time to executor", label);
+                data.add(Math.max(0, timeline.getBuildMillis()) / 1000.0, "Build", label);
+            }
+            if (++count == BUILDS) {
+                break;
+            }
+        }
+
+        new Graph(last.getTimestamp().getTimeInMillis(), 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                JFreeChart chart = ChartFactory.createLineChart(null, null, "seconds", data.build(),
+                        PlotOrientation.VERTICAL, true, true, false);
+                chart.setBackgroundPaint(Color.WHITE);
+                return chart;
+            }
+        }.doPng(req, rsp);
+    }
+
+    /**
+     * Exports the recent builds as a trace for {@link com.nirima.jenkins.plugins.docker.sim.CapacitySimulator}.
+     */
+    public void doTrace(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        String label = project.getAssignedLabelString();
+        List<String> lines = new ArrayList<String>();
+        for (AbstractBuild<?, ?> build : project.getBuilds()) {
+            DockerTimelineAction timeline = build.getAction(DockerTimelineAction.class);
+            if (timeline != null && timeline.getQueuedAt() > 0 && timeline.getBuildMillis() >= 0) {
+                lines.add(timeline.getQueuedAt() / 1000.0 + "," + (label == null ? "" : label) + ","
+                        + timeline.getBuildMillis() / 1000.0);
+            }
+        }
+        Collections.reverse(lines);
+
+        rsp.setContentType("text/csv;charset=UTF-8");
+        PrintWriter w = rsp.getWriter();
+        w.println("arrival,label,duration");
+        for (String line : lines) {
+            w.println(line);
+        }
+        w.flush();
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Docker Time to Executor";
+    }
+
+    public String getUrlName() {
+        return "dockerTimeline";
+    }
+
+    @Extension
+    public static class Factory extends TransientProjectActionFactory {
+        @Override
+        public Collection<? extends Action> createFor(AbstractProject target) {
+            return Collections.singleton(new DockerTimelineProjectAction(target));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.nirima.jenkins.plugins.docker.publisher;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Node;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Publisher;
+import hudson.tasks.Recorder;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.github.dockerjava.client.DockerException;
+import com.nirima.jenkins.plugins.docker.DockerSlave;
+
+/**
+ * Archives build artifacts by pulling them from the container through the Docker archive API,
+ * rather than through the slave's remoting channel.
+ *
+ * The tar stream from the daemon is unpacked straight into the build's artifact directory. This runs while the
+ * container is still there, before {@link DockerSlave} terminates and removes it.
+ */
+public class DockerArtifactArchiver extends Recorder {
+    private static final Logger LOGGER = Logger.getLogger(DockerArtifactArchiver.class.getName());
+
+    /**
+     * Comma separated paths in the container, relative ones are resolved against the workspace.
+     */
+    public final String paths;
+
+    @DataBoundConstructor
+    public DockerArtifactArchiver(String paths) {
+        this.paths = paths;
+    }
+
+    public BuildStepMonitor getRequiredMonitorService() {
+        return BuildStepMonitor.NONE;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        Node node = build.getBuiltOn();
+        if (!(node instanceof DockerSlave)) {
+            listener.getLogger().println("Not built on a Docker slave, no artifacts archived from a container");
+            return true;
+        }
+        DockerSlave slave = (DockerSlave) node;
+        FilePath artifactsDir = new FilePath(build.getArtifactsDir());
+
+        for (String path : Util.tokenize(Util.fixNull(paths), ",")) {
+            path = path.trim();
+            if (!path.startsWith("/")) {
+                path = build.getWorkspace().getRemote() + "/" + path;
+            }
+
+            long start = System.currentTimeMillis();
+            CountingInputStream in;
+            try {
+                in = new CountingInputStream(slave.getClient().copyFileFromContainerCmd(slave.containerId, path).exec());
+            }
+            catch (DockerException e) {
+                LOGGER.log(Level.WARNING, "Failure to copy " + path + " from container " + slave.containerId, e);
+                listener.error("Failed to archive " + path + " from the container: " + e.getMessage());
+                return false;
+            }
+            artifactsDir.untarFrom(in, FilePath.TarCompression.NONE);
+
+            long millis = Math.max(1, System.currentTimeMillis() - start);
+            listener.getLogger().println("Archived " + path + " from the container: " + in.getByteCount() + " bytes in "
+                    + millis + " ms (" + (in.getByteCount() * 1000 / millis / 1024) + " KB/s)");
+        }
+        return true;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Publisher> {
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Archive artifacts from the Docker container";
+        }
+    }
+}
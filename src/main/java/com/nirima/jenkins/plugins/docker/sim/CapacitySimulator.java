@@ -0,0 +1,478 @@
+package com.nirima.jenkins.plugins.docker.sim;
+
+import com.nirima.jenkins.plugins.docker.DockerCapacity;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Replays a recorded queue trace against candidate cloud and template settings, to see what they would have done to
+ * the time builds wait for an executor and to the number of container hours.
+ *
+ * A trace is a CSV file of {@code arrival,label,duration} lines, with times in seconds. The trace of a project is
+ * exported by its Docker timeline at {@code job/NAME/dockerTimeline/trace}; several traces are merged. Provisioning
+ * follows {@link DockerCapacity}, like {@code DockerCloud} and its allocator do: Jenkins asks for the excess
+ * workload of every label on each provisioner pass, the template's share of the cloud cap is worked out by priority,
+ * reservation and deficit round robin, a container runs a single build and is removed right after, and its
+ * termination may start another one to keep the minimum of idle containers. Creating a container takes a fixed
+ * latency plus an exponentially distributed tail.
+ *
+ * It differs from a running Jenkins in that:
+ * <ul>
+ * <li>Jenkins' own provisioner, which smooths the queue length over time, is reduced to a pass at a fixed interval
+ * that asks for the current excess workload.</li>
+ * <li>Idle containers are not preempted for higher priority templates.</li>
+ * <li>Workspace memory, locality between clouds and the circuit breaker are not modelled; there is a single cloud.</li>
+ * <li>Every label is its own template, matched by its exact text rather than as a label expression.</li>
+ * </ul>
+ *
+ * <pre>
+ * java -cp docker-plugin/WEB-INF/classes com.nirima.jenkins.plugins.docker.sim.CapacitySimulator \
+ *     --cloud-cap 20 --instance-cap 10 --min-idle 2 --template java8,5,1,10,2 trace.csv
+ * </pre>
+ */
+public class CapacitySimulator {
+
+    private final Settings defaults;
+    private final Map<String, Settings> templates;
+    private final int cloudCap;
+    private final double latency;
+    private final double latencyTail;
+    private final double terminateLatency;
+    private final double provisionerInterval;
+    private final Random random;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private final Map<String, Pool> pools = new LinkedHashMap<String, Pool>();
+    private double now;
+    private long sequence;
+    private int alive;
+
+    public CapacitySimulator(Settings defaults, Map<String, Settings> templates, int cloudCap, double latency,
+                             double latencyTail, double terminateLatency, double provisionerInterval, long seed) {
+        this.defaults = defaults;
+        this.templates = templates;
+        this.cloudCap = cloudCap;
+        this.latency = latency;
+        this.latencyTail = latencyTail;
+        this.terminateLatency = terminateLatency;
+        this.provisionerInterval = provisionerInterval;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Settings of a template, as entered in its configuration.
+     */
+    public static final class Settings {
+        public final int instanceCap;
+        public final int minIdleContainers;
+        public final int priority;
+        public final int reservedInstances;
+
+        public Settings(int instanceCap, int minIdleContainers, int priority, int reservedInstances) {
+            if (minIdleContainers > instanceCap) {
+                throw new IllegalArgumentException("Minimum number of idle containers must be less than or equals to the container cap.");
+            }
+            if (reservedInstances > instanceCap) {
+                throw new IllegalArgumentException("Number of reserved containers must be less than or equals to the container cap.");
+            }
+            this.instanceCap = instanceCap;
+            this.minIdleContainers = minIdleContainers;
+            this.priority = priority;
+            this.reservedInstances = reservedInstances;
+        }
+    }
+
+    public static final class Job {
+        public final double arrival;
+        public final String label;
+        public final double duration;
+        double started = -1;
+
+        public Job(double arrival, String label, double duration) {
+            this.arrival = arrival;
+            this.label = label;
+            this.duration = duration;
+        }
+    }
+
+    private static final class Container {
+        final double requested;
+
+        Container(double requested) {
+            this.requested = requested;
+        }
+    }
+
+    /**
+     * Containers and queued builds of one label.
+     */
+    private final class Pool {
+        final String label;
+        final Settings settings;
+        final Deque<Job> queue = new ArrayDeque<Job>();
+        final Deque<Container> idle = new ArrayDeque<Container>();
+        final List<Job> jobs = new ArrayList<Job>();
+        int pending;
+        int alive; // pending, idle and busy containers, as counted by the allocator
+        int deficit;
+        int peak;
+        double containerSeconds;
+
+        Pool(String label, Settings settings) {
+            this.label = label;
+            this.settings = settings;
+        }
+
+        int excessWorkload() {
+            return queue.size() - idle.size() - pending;
+        }
+
+        void provision(int excessWorkload) {
+            int containersToCreate = DockerCapacity.containersToCreate(excessWorkload, settings.minIdleContainers, settings.instanceCap);
+            containersToCreate = allocate(containersToCreate);
+            while (containersToCreate > 0 && alive < settings.instanceCap && (cloudCap == 0 || CapacitySimulator.this.alive < cloudCap)) {
+                alive++;
+                CapacitySimulator.this.alive++;
+                peak = Math.max(peak, alive);
+                pending++;
+                schedule(now + latency + (latencyTail > 0 ? -latencyTail * Math.log(1 - random.nextDouble()) : 0),
+                        Kind.READY, this, new Container(now), null);
+                containersToCreate--;
+            }
+        }
+
+        /**
+         * Same as {@code DockerAllocator.allocate}, with the queue of each pool as the demand of its template.
+         */
+        int allocate(int wanted) {
+            if (cloudCap == 0 || wanted <= 0) {
+                return wanted;
+            }
+            int free = cloudCap - CapacitySimulator.this.alive;
+            int held = 0;
+            int active = 1;
+            for (Pool o : pools.values()) {
+                if (o == this) {
+                    continue;
+                }
+                int reservedLeft = Math.max(0, o.settings.reservedInstances - o.alive);
+                held += DockerCapacity.heldBack(reservedLeft, o.settings.priority > settings.priority, o.queue.size());
+                if (!o.queue.isEmpty() && o.settings.priority == settings.priority) {
+                    active++;
+                }
+            }
+            int guaranteed = Math.max(0, settings.reservedInstances - alive);
+            int allowed = DockerCapacity.allowed(free, held, guaranteed);
+
+            int granted = Math.min(wanted, allowed);
+            if (active > 1 && granted > guaranteed) {
+                deficit = DockerCapacity.addShare(deficit, allowed, active, cloudCap);
+                granted = DockerCapacity.grant(wanted, allowed, guaranteed, deficit);
+                deficit = wanted > granted ? deficit - granted : 0;
+            } else {
+                deficit = 0;
+            }
+            return granted;
+        }
+
+        void dispatch() {
+            while (!queue.isEmpty() && !idle.isEmpty()) {
+                Container container = idle.poll();
+                Job job = queue.poll();
+                job.started = now;
+                schedule(now + job.duration, Kind.DONE, this, container, job);
+            }
+        }
+
+        void terminated(Container container) {
+            alive--;
+            CapacitySimulator.this.alive--;
+            containerSeconds += now - container.requested;
+            int excessWorkload = excessWorkload();
+            if (DockerCapacity.needsReplenishing(excessWorkload, settings.minIdleContainers)) {
+                provision(excessWorkload);
+            }
+        }
+    }
+
+    private enum Kind { ARRIVAL, READY, DONE, GONE, TICK }
+
+    private final class Event implements Comparable<Event> {
+        final double time;
+        final long order = sequence++;
+        final Kind kind;
+        final Pool pool;
+        final Container container;
+        final Job job;
+
+        Event(double time, Kind kind, Pool pool, Container container, Job job) {
+            this.time = time;
+            this.kind = kind;
+            this.pool = pool;
+            this.container = container;
+            this.job = job;
+        }
+
+        public int compareTo(Event o) {
+            return time < o.time ? -1 : time > o.time ? 1 : order < o.order ? -1 : order > o.order ? 1 : 0;
+        }
+    }
+
+    private void schedule(double time, Kind kind, Pool pool, Container container, Job job) {
+        events.add(new Event(time, kind, pool, container, job));
+    }
+
+    private Pool pool(String label) {
+        Pool pool = pools.get(label);
+        if (pool == null) {
+            Settings settings = templates.get(label);
+            pool = new Pool(label, settings != null ? settings : defaults);
+            pools.put(label, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Runs the trace to the end.
+     */
+    public void run(List<Job> trace) {
+        // templates that are configured but missing from the trace still hold their reservations
+        for (String label : templates.keySet()) {
+            pool(label);
+        }
+        for (Job job : trace) {
+            Pool pool = pool(job.label);
+            pool.jobs.add(job);
+            schedule(job.arrival, Kind.ARRIVAL, pool, null, job);
+        }
+        schedule(0, Kind.TICK, null, null, null);
+
+        while (!events.isEmpty()) {
+            Event e = events.poll();
+            now = e.time;
+            switch (e.kind) {
+                case ARRIVAL:
+                    e.pool.queue.add(e.job);
+                    e.pool.dispatch();
+                    break;
+                case READY:
+                    e.pool.pending--;
+                    e.pool.idle.add(e.container);
+                    e.pool.dispatch();
+                    break;
+                case DONE:
+                    // DockerComputer terminates a container as soon as its single build completes
+                    schedule(now + terminateLatency, Kind.GONE, e.pool, e.container, null);
+                    break;
+                case GONE:
+                    e.pool.terminated(e.container);
+                    break;
+                case TICK:
+                    for (Pool pool : pools.values()) {
+                        int excessWorkload = pool.excessWorkload();
+                        if (excessWorkload > 0) {
+                            pool.provision(excessWorkload);
+                        }
+                    }
+                    // once nothing else is going to happen, another pass cannot change anything either
+                    if (!events.isEmpty()) {
+                        schedule(now + provisionerInterval, Kind.TICK, null, null, null);
+                    }
+                    break;
+            }
+        }
+
+        // containers still idle at the end are counted up to the last event
+        for (Pool pool : pools.values()) {
+            for (Container container : pool.idle) {
+                pool.containerSeconds += now - container.requested;
+            }
+        }
+    }
+
+    public void report(PrintStream out) {
+        out.println(String.format("%-24s %6s %9s %8s %8s %8s %8s %10s %5s",
+                "label", "jobs", "unstarted", "p50", "p90", "p99", "max", "cont-hours", "peak"));
+        List<Double> allWaits = new ArrayList<Double>();
+        int allJobs = 0;
+        double allSeconds = 0;
+        for (Pool pool : pools.values()) {
+            List<Double> waits = waits(pool.jobs);
+            allWaits.addAll(waits);
+            allJobs += pool.jobs.size();
+            allSeconds += pool.containerSeconds;
+            print(out, pool.label, pool.jobs.size(), waits, pool.containerSeconds, pool.peak);
+        }
+        print(out, "(all)", allJobs, allWaits, allSeconds, -1);
+    }
+
+    private static List<Double> waits(List<Job> jobs) {
+        List<Double> waits = new ArrayList<Double>();
+        for (Job job : jobs) {
+            if (job.started >= 0) {
+                waits.add(job.started - job.arrival);
+            }
+        }
+        return waits;
+    }
+
+    private static void print(PrintStream out, String label, int jobs, List<Double> waits, double containerSeconds, int peak) {
+        Collections.sort(waits);
+        out.println(String.format("%-24s %6d %9d %8.1f %8.1f %8.1f %8.1f %10.2f %5s",
+                label, jobs, jobs - waits.size(),
+                percentile(waits, 50), percentile(waits, 90), percentile(waits, 99),
+                waits.isEmpty() ? 0 : waits.get(waits.size() - 1),
+                containerSeconds / 3600, peak < 0 ? "" : String.valueOf(peak)));
+    }
+
+    /**
+     * Nearest rank percentile of sorted values.
+     */
+    static double percentile(List<Double> sorted, int percent) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    /**
+     * Reads a trace. Blank lines, comments starting with {@code #} and a header line are skipped.
+     */
+    public static List<Job> readTrace(String file) throws IOException {
+        List<Job> jobs = new ArrayList<Job>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int n = 0;
+            while ((line = in.readLine()) != null) {
+                n++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                // the label is whatever lies between the first and the last comma, so label expressions may contain commas
+                int first = line.indexOf(',');
+                int last = line.lastIndexOf(',');
+                if (first < 0 || first == last) {
+                    throw new IOException(file + ":" + n + ": expected arrival,label,duration");
+                }
+                try {
+                    jobs.add(new Job(Double.parseDouble(line.substring(0, first).trim()),
+                            line.substring(first + 1, last).trim(),
+                            Double.parseDouble(line.substring(last + 1).trim())));
+                }
+                catch (NumberFormatException e) {
+                    if (n == 1) {
+                        continue; // header
+                    }
+                    throw new IOException(file + ":" + n + ": " + e.getMessage());
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        return jobs;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int instanceCap = Integer.MAX_VALUE;
+        int minIdle = 0;
+        int cloudCap = 0;
+        double latency = 30;
+        double latencyTail = 0;
+        double terminateLatency = 5;
+        double provisionerInterval = 10;
+        long seed = 1;
+        Map<String, Settings> templates = new HashMap<String, Settings>();
+        List<String> files = new ArrayList<String>();
+        Settings defaults;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    files.add(arg);
+                } else if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing value of " + arg);
+                } else if (arg.equals("--instance-cap")) {
+                    instanceCap = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--min-idle")) {
+                    minIdle = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--cloud-cap")) {
+                    cloudCap = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--latency")) {
+                    latency = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--latency-tail")) {
+                    latencyTail = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--terminate-latency")) {
+                    terminateLatency = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--provisioner-interval")) {
+                    provisionerInterval = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--seed")) {
+                    seed = Long.parseLong(args[++i]);
+                } else if (arg.equals("--template")) {
+                    String[] fields = args[++i].split(",");
+                    if (fields.length < 2 || fields.length > 5) {
+                        throw new IllegalArgumentException("Expected --template label,instanceCap[,minIdle[,priority[,reserved]]]");
+                    }
+                    templates.put(fields[0], new Settings(Integer.parseInt(fields[1]),
+                            fields.length > 2 ? Integer.parseInt(fields[2]) : 0,
+                            fields.length > 3 ? Integer.parseInt(fields[3]) : 0,
+                            fields.length > 4 ? Integer.parseInt(fields[4]) : 0));
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (files.isEmpty()) {
+                throw new IllegalArgumentException("No trace given");
+            }
+            if (provisionerInterval <= 0) {
+                throw new IllegalArgumentException("--provisioner-interval must be positive");
+            }
+            defaults = new Settings(instanceCap, minIdle, 0, 0);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: CapacitySimulator [--cloud-cap N] [--instance-cap N] [--min-idle N]"
+                    + " [--template label,instanceCap[,minIdle[,priority[,reserved]]]]... [--latency SECONDS] [--latency-tail SECONDS]"
+                    + " [--terminate-latency SECONDS] [--provisioner-interval SECONDS] [--seed N] TRACE.csv...");
+            System.exit(2);
+            return;
+        }
+
+        List<Job> trace = new ArrayList<Job>();
+        for (String file : files) {
+            trace.addAll(readTrace(file));
+        }
+        // exported traces carry wall clock times, so start the simulation at the first arrival
+        double start = Double.MAX_VALUE;
+        for (Job job : trace) {
+            start = Math.min(start, job.arrival);
+        }
+        List<Job> shifted = new ArrayList<Job>();
+        for (Job job : trace) {
+            shifted.add(new Job(job.arrival - start, job.label, job.duration));
+        }
+
+        CapacitySimulator simulator = new CapacitySimulator(defaults, templates, cloudCap,
+                latency, latencyTail, terminateLatency, provisionerInterval, seed);
+        simulator.run(shifted);
+        simulator.report(System.out);
+    }
+}